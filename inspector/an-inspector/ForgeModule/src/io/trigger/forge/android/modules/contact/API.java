@@ -11,14 +11,13 @@ import io.trigger.forge.android.core.ForgeTask;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import android.accounts.AccountManager;
 import android.annotation.SuppressLint;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
-import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Intent;
 import android.database.Cursor;
@@ -26,10 +25,32 @@ import android.net.Uri;
 import android.provider.ContactsContract;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 
+/**
+ * Adding contacts needs an account, and working out which one may mean
+ * asking the user.  AccountCallback is what gets called once we know.
+ */
+
+interface AccountCallback {
+    /**
+     * @param accountName Account name to add contacts under (may be null)
+     * @param accountType Account type to add contacts under (may be null)
+     */
+
+    public void withAccount(String accountName, String accountType);
+}
+
 public class API {
+    // Most operations we'll hand to a single applyBatch in addAll.  The
+    // provider insists on a yield point at least every 500 ops, and we
+    // don't use any (see addAllWithAccount); big batches also risk
+    // blowing the binder transaction limit.
+    private static final int MAX_BATCH_OPS = 250;
+
     /**
      * Allow interactive picking of a single contact
      * @param task
@@ -37,23 +58,31 @@ public class API {
     public static void select(final ForgeTask task) {
         ForgeIntentResultHandler handler = new ForgeIntentResultHandler() {
                 @Override
-                public void result(int requestCode, int resultCode, Intent data) {
+                public void result(int requestCode, int resultCode, final Intent data) {
                     if (resultCode == RESULT_OK) {
-                        String contactId;
-                        JsonObject result = new JsonObject();
-                        Cursor cursor = null;
-                        cursor = ForgeApp.getActivity().getContentResolver().query(data.getData(),
-                                                                                   new String[] { ContactsContract.Contacts._ID }, 
-                                                                                   null, null, null);
-                        try {
-                            if (cursor.moveToFirst()) {
-                                contactId = cursor.getString(0);
-                                result = Util.contactIdToJsonObject(contactId, null);
-                            }
-                        } finally {
-                            cursor.close();
-                        }
-                        task.success(result);
+                        // We're on the UI thread here, so do the actual
+                        // reading elsewhere.
+                        ContactExecutor.read("select", ContactExecutor.INTERACTIVE, task, new Runnable() {
+                                public void run() {
+                                    String contactId;
+                                    JsonObject result = new JsonObject();
+                                    Cursor cursor = null;
+                                    cursor = Util.query(data.getData(),
+                                                        new String[] { ContactsContract.Contacts._ID }, 
+                                                        null, null, null, CallContext.NONE);
+                                    try {
+                                        if (cursor.moveToFirst()) {
+                                            contactId = cursor.getString(0);
+                                            result = Util.contactIdToJsonObject(contactId, null);
+                                            ContactStats.contacts(1);
+                                        }
+                                    } finally {
+                                        cursor.close();
+                                    }
+                                    ContactStats.bytes(result);
+                                    task.success(result);
+                                }
+                            });
                     } else if (resultCode == RESULT_CANCELED) {
                         task.error("User cancelled selecting contact", "EXPECTED_FAILURE", null);
                     } else {
@@ -66,63 +95,938 @@ public class API {
 	
     /**
      * Return everything we know about a single contact
+     *
+     * Concurrent calls for the same contact share one query (see
+     * SingleFlight).
+     *
      * @param task
      * @param contactId
      */
     public static void selectById(final ForgeTask task, @ForgeParam("id") final String contactId) {
+        final SingleFlight flight = SingleFlight.join("selectById", "selectById " + contactId,
+                                                      task, null);
+        if (flight == null) {
+            return;
+        }
+        ContactExecutor.read("selectById", ContactExecutor.INTERACTIVE, flight, new Runnable() {
+                public void run() {
+                    selectByIdNow(flight, contactId);
+                }
+            });
+    }
+
+    // The work behind selectById, on a ContactExecutor thread.
+    private static void selectByIdNow(final SingleFlight task, final String contactId) {
         JsonObject contact = Util.contactIdToJsonObject(contactId, null);
         if (contact != null) {
+            ContactStats.contacts(1);
+            ContactStats.bytes(contact);
             task.success(contact);
         } else {
             task.error("No contact with id '"+contactId+"' found", "EXPECTED_FAILURE", null);
         }
     }
 	
+    /**
+     * Return data about a list of contacts whose IDs we already know, in
+     * one go: one lookup query and one (chunked) hydration query, rather
+     * than a selectById per contact.
+     *
+     * Contacts come back in the order of ids; IDs that don't exist are
+     * left out.  Concurrent calls with the same ids, fields and timeout
+     * share one query (see SingleFlight).
+     *
+     * @param task    Active Forge task
+     * @param ids     Contact IDs
+     * @param fields  High-level fields to populate, or null for everything
+     * @param handle  Handle for contact.cancel, or null/empty
+     * @param timeout Milliseconds before we give up, or 0 for never
+     */
+    public static void selectByIds(final ForgeTask task,
+                                   @ForgeParam("ids") final JsonArray ids,
+                                   @ForgeParam("fields") final JsonArray fields,
+                                   @ForgeParam("handle") final String handle,
+                                   @ForgeParam("timeout") final long timeout) {
+        final SingleFlight flight = SingleFlight.join("selectByIds",
+                                                      "selectByIds " + ids + " " + fields
+                                                      + " " + timeout,
+                                                      task, handle);
+        if (flight == null) {
+            return;
+        }
+        final CallContext ctx = flight.open(timeout);
+        ContactExecutor.read("selectByIds", ContactExecutor.NORMAL, flight, new Runnable() {
+                public void run() {
+                    try {
+                        ctx.checkCancelled();
+                        selectByIdsNow(flight, ids, fields, ctx);
+                    } finally {
+                        ctx.close();
+                    }
+                }
+            });
+    }
+
+    // The work behind selectByIds, on a ContactExecutor thread.
+    private static void selectByIdsNow(final SingleFlight task, final JsonArray ids,
+                                       final JsonArray fields, final CallContext ctx) {
+        ArrayList<String> contactIds = new ArrayList<String>(ids.size());
+        for (JsonElement id : ids) {
+            contactIds.add(id.getAsString());
+        }
+
+        Map<String, JsonObject> contacts = Util.findContacts(contactIds, ctx);
+
+        if (((fields == null) || (fields.size() != 0)) && !contacts.isEmpty()) {
+            Util.populateContacts(contacts, fields, ctx);
+        }
+
+        JsonArray results = new JsonArray();
+        for (JsonObject value: contacts.values()) {
+            results.add(value);
+        }
+        ContactStats.contacts(results.size());
+        ContactStats.bytes(results);
+        task.success(results);
+    }
+	
     /**
      * Return data about every contact.
      * 
      * If fields is null, return everything for every contact; otherwise, limit the columns
      * we inspect to the high-level fields specified therein.
      * 
+     * Options:
+     *   singlePass  if true, read the fields with one sorted query over
+     *               the Data table, in step with the Contacts query (see
+     *               Util.streamContacts), instead of hydrating a list of
+     *               contacts in chunks
+     *   streamJson  if true, implies singlePass, and serializes each
+     *               contact as soon as it's read, returning the JSON
+     *               text of the array rather than a JsonArray; the JS
+     *               side parses it
+     *   format      "columnar" to return an object of parallel arrays
+     *               (see ColumnarSink) rather than an array of
+     *               contacts; this ignores singlePass and streamJson
+     *   sortBy      order to return contacts in (see sortOrderFor)
+     *   limit       return at most this many contacts
+     *   offset      skip this many contacts first
+     *               sortBy and limit are handed to the provider with
+     *               the Contacts query, and offset rows are skipped
+     *               from its cursor, so only the contacts we return are
+     *               hydrated; they rule out singlePass and streamJson,
+     *               which read in contact ID order
+     *   handle      if present, a string contact.cancel can use to
+     *               cancel this call
+     *   timeout     if present, give up after this many milliseconds
+     *
+     * Concurrent calls with the same fields and options (other than
+     * handle) share one query (see SingleFlight).  Cancelling one of
+     * them only cancels the query once all of them have been cancelled.
+     * 
      * @param task
      * @param fields
+     * @param options
      */
-    public static void selectAll(final ForgeTask task, @ForgeParam("fields") final JsonArray fields) {
-        Map<String, JsonObject> contacts = new Hashtable<String, JsonObject>();
-        Cursor cursor = ForgeApp.getActivity().getContentResolver().query(
-            ContactsContract.Contacts.CONTENT_URI,
+    public static void selectAll(final ForgeTask task, @ForgeParam("fields") final JsonArray fields,
+                                 @ForgeParam("options") final JsonObject options) {
+        final SingleFlight flight = SingleFlight.join("selectAll", selectAllKey(fields, options),
+                                                      task, Util.optString(options, "handle", null));
+        if (flight == null) {
+            return;
+        }
+        final CallContext ctx = flight.open(Util.optLong(options, "timeout", 0));
+        ContactExecutor.read("selectAll", ContactExecutor.BULK, flight, new Runnable() {
+                public void run() {
+                    try {
+                        ctx.checkCancelled();
+                        selectAllNow(flight, fields, options, ctx);
+                    } finally {
+                        ctx.close();
+                    }
+                }
+            });
+    }
+
+    // The SingleFlight key for a selectAll: the fields and every option
+    // but the handle.  (Options given in a different order make a
+    // different key, which only costs us a shared query.)
+    private static String selectAllKey(JsonArray fields, JsonObject options) {
+        JsonObject shared = new JsonObject();
+        if (options != null) {
+            for (Map.Entry<String, JsonElement> option : options.entrySet()) {
+                if (!"handle".equals(option.getKey())) {
+                    shared.add(option.getKey(), option.getValue());
+                }
+            }
+        }
+        return "selectAll " + fields + " " + shared;
+    }
+
+    // The work behind selectAll, on a ContactExecutor thread.
+    private static void selectAllNow(final SingleFlight task, final JsonArray fields,
+                                     final JsonObject options, final CallContext ctx) {
+        String sortBy = Util.optString(options, "sortBy", null);
+        long limit = Util.optLong(options, "limit", 0);
+        long offset = Util.optLong(options, "offset", 0);
+        String order = null;
+
+        if ((limit < 0) || (offset < 0)) {
+            task.error("limit and offset must not be negative", "BAD_INPUT", null);
+            return;
+        }
+        if (sortBy != null) {
+            order = sortOrderFor(sortBy);
+            if (order == null) {
+                task.error("Unknown sortBy '" + sortBy + "'", "BAD_INPUT", null);
+                return;
+            }
+        }
+
+        // Anything that shapes the result has to go to the Contacts
+        // query.  The provider takes a limit as a URI parameter; it has
+        // no documented way to take an offset, so we ask for
+        // offset + limit rows and skip the first offset of them (see
+        // scanContacts).  Skipping is cheap next to hydration, which
+        // only sees the contacts we return.
+        boolean shaped = (order != null) || (limit > 0) || (offset > 0);
+        Uri uri = ContactsContract.Contacts.CONTENT_URI;
+
+        if (shaped) {
+            if (order == null) {
+                order = ContactsContract.Contacts._ID + " ASC";
+            }
+            if (limit > 0) {
+                uri = uri.buildUpon()
+                    .appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY,
+                                          String.valueOf(offset + limit))
+                    .build();
+            }
+        }
+
+        if ("columnar".equals(Util.optString(options, "format", null))) {
+            selectAllColumnar(task, fields, shaped, uri, order, offset, ctx);
+            return;
+        }
+
+        if (!shaped && Util.optBoolean(options, "streamJson", false)) {
+            JsonArraySink sink = new JsonArraySink();
+            Util.streamContacts(fields, sink, ctx);
+            String json = sink.finish();
+            ContactStats.contacts(sink.count());
+            ContactStats.bytes(json);
+            task.success(new JsonPrimitive(json));
+            return;
+        }
+
+        if (!shaped && Util.optBoolean(options, "singlePass", false)) {
+            final JsonArray results = new JsonArray();
+            Util.streamContacts(fields, new ContactSink() {
+                    public void emit(JsonObject contact) {
+                        results.add(contact);
+                    }
+                }, ctx);
+            ContactStats.contacts(results.size());
+            ContactStats.bytes(results);
+            task.success(results);
+            return;
+        }
+
+        Map<String, JsonObject> contacts = scanContacts(uri, order, offset, ctx);
+
+        if (fields.size() != 0) {
+            Util.populateContacts(contacts, fields, ctx);
+        }
+			
+        JsonArray results = new JsonArray();
+        for (JsonObject value: contacts.values()) {
+            results.add(value);
+        }
+        ContactStats.contacts(results.size());
+        ContactStats.bytes(results);
+        task.success(results);
+    }
+
+    /**
+     * Read the IDs and names of contacts, ready for populateContacts.
+     *
+     * @param uri    Contacts URI to query (possibly with a limit)
+     * @param order  Sort order, or null for the provider's
+     * @param offset Number of rows to skip first
+     * @param ctx    Context of the call we're working for
+     * @return mapping of contactId to contact, in query order
+     */
+    private static Map<String, JsonObject> scanContacts(Uri uri, String order, long offset,
+                                                        CallContext ctx) {
+        Map<String, JsonObject> contacts = new LinkedHashMap<String, JsonObject>();
+        Cursor cursor = Util.query(
+            uri,
             new String[] {
                 ContactsContract.Contacts._ID,
                 ContactsContract.Contacts.DISPLAY_NAME
             },
-            null, null, null);
+            null, null, order, ctx);
         try {
-            if (cursor.moveToFirst()) {
-                do {
-                    String contactId = cursor.getString(0);
-                    JsonObject contact;
-                    if (contacts.containsKey(contactId)) {
-                        contact = contacts.get(contactId);
-                    } else {
-                        contact = new JsonObject();
-                        contact.addProperty("id", contactId);
-                        contact.addProperty("displayName", cursor.getString(1));
-                    }
+            skip(cursor, offset);
+            while (cursor.moveToNext()) {
+                ctx.checkCancelled();
+                String contactId = cursor.getString(0);
+                if (!contacts.containsKey(contactId)) {
+                    JsonObject contact = new JsonObject();
+                    contact.addProperty("id", contactId);
+                    contact.addProperty("displayName", cursor.getString(1));
                     contacts.put(contactId, contact);
-                } while (cursor.moveToNext());
+                }
             }
-            if (fields.size() != 0) {
-                Util.populateContacts(contacts, fields);
+        } finally {
+            cursor.close();
+        }
+        return contacts;
+    }
+
+    /**
+     * Position a fresh cursor so that the next moveToNext() lands on
+     * row offset.  The provider fills the cursor window from wherever
+     * we move to, so the rows we skip never cross the process boundary.
+     *
+     * @param cursor Cursor, before its first row
+     * @param offset Number of rows to skip
+     */
+    private static void skip(Cursor cursor, long offset) {
+        if (offset > 0) {
+            cursor.moveToPosition((int) Math.min(offset, Integer.MAX_VALUE) - 1);
+        }
+    }
+
+    /**
+     * Turn a selectAll sortBy option into a Contacts sort order:
+     *
+     *   displayName      display name, in the user's locale's order
+     *   primaryName      the provider's sort key for the name as shown
+     *                    ("Given Family" on most devices)
+     *   alternativeName  the sort key for the alternative form
+     *                    ("Family, Given")
+     *   lastContacted    most recently contacted first
+     *   timesContacted   most often contacted first
+     *   starred          starred contacts first, then by display name
+     *
+     * Ties are broken by contact ID, so pages are stable.
+     *
+     * @param sortBy The option's value
+     * @return The sort order, or null if we don't know sortBy
+     */
+    @SuppressLint("InlinedApi")
+    private static String sortOrderFor(String sortBy) {
+        String byName = ContactsContract.Contacts.DISPLAY_NAME + " COLLATE LOCALIZED ASC";
+        String order;
+
+        if (sortBy.equals("displayName")) {
+            order = byName;
+        } else if (sortBy.equals("primaryName")) {
+            order = ContactsContract.Contacts.SORT_KEY_PRIMARY + " ASC";
+        } else if (sortBy.equals("alternativeName")) {
+            order = ContactsContract.Contacts.SORT_KEY_ALTERNATIVE + " ASC";
+        } else if (sortBy.equals("lastContacted")) {
+            order = ContactsContract.Contacts.LAST_TIME_CONTACTED + " DESC";
+        } else if (sortBy.equals("timesContacted")) {
+            order = ContactsContract.Contacts.TIMES_CONTACTED + " DESC";
+        } else if (sortBy.equals("starred")) {
+            order = ContactsContract.Contacts.STARRED + " DESC, " + byName;
+        } else {
+            return null;
+        }
+        return order + ", " + ContactsContract.Contacts._ID + " ASC";
+    }
+
+    // selectAll with format "columnar".  With no fields, the columns
+    // are filled straight from a Contacts scan.  Otherwise, unless the
+    // result is sorted or limited, we take the single-pass route and
+    // file each contact away as it's finished.
+    private static void selectAllColumnar(final SingleFlight task, final JsonArray fields,
+                                          final boolean shaped, final Uri uri,
+                                          final String order, final long offset,
+                                          final CallContext ctx) {
+        ColumnarSink sink = new ColumnarSink(fields);
+
+        if ((fields == null) || (fields.size() == 0)) {
+            Cursor cursor = Util.query(
+                uri,
+                new String[] {
+                    ContactsContract.Contacts._ID,
+                    ContactsContract.Contacts.DISPLAY_NAME
+                },
+                null, null, order, ctx);
+            try {
+                skip(cursor, offset);
+                while (cursor.moveToNext()) {
+                    ctx.checkCancelled();
+                    sink.add(cursor.getString(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
             }
-			
-            JsonArray results = new JsonArray();
-            for (JsonObject value: contacts.values()) {
-                results.add(value);
+        } else if (shaped) {
+            Map<String, JsonObject> contacts = scanContacts(uri, order, offset, ctx);
+            Util.populateContacts(contacts, fields, ctx);
+            for (JsonObject contact : contacts.values()) {
+                sink.emit(contact);
+            }
+        } else {
+            Util.streamContacts(fields, sink, ctx);
+        }
+
+        JsonObject result = sink.finish();
+        ContactStats.contacts(sink.count());
+        ContactStats.bytes(result);
+        task.success(result);
+    }
+
+    /**
+     * Return one page of contacts, ordered by contact ID.
+     *
+     * Rather than materializing the whole address book, we ask the
+     * provider for at most pageSize contacts whose ID is greater than
+     * the last ID of the previous page, and hydrate only those.  The
+     * result looks like
+     *
+     *     { "contacts": [ ... ], "cursor": "..." }
+     *
+     * where cursor is an opaque continuation token to pass back in to
+     * get the next page, or null if there are no more contacts.
+     *
+     * @param task         Active Forge task
+     * @param fields       High-level fields to populate (see selectAll)
+     * @param pageSize     Maximum number of contacts to return
+     * @param cursorToken  Continuation token from the previous page, or
+     *                     null/empty to start at the beginning
+     * @param handle       Handle for contact.cancel, or null/empty
+     * @param timeout      Milliseconds before we give up, or 0 for never
+     */
+    public static void selectPage(final ForgeTask task,
+                                  @ForgeParam("fields") final JsonArray fields,
+                                  @ForgeParam("pageSize") final int pageSize,
+                                  @ForgeParam("cursor") final String cursorToken,
+                                  @ForgeParam("handle") final String handle,
+                                  @ForgeParam("timeout") final long timeout) {
+        // Register the handle and start the clock now, not when the job
+        // gets to the front of the queue, so that the call can be
+        // cancelled (or time out) while it waits.
+        final CallContext ctx = CallContext.open(handle, timeout);
+        ContactExecutor.read("selectPage", ContactExecutor.NORMAL, task, new Runnable() {
+                public void run() {
+                    try {
+                        ctx.checkCancelled();
+                        selectPageNow(task, fields, pageSize, cursorToken, ctx);
+                    } finally {
+                        ctx.close();
+                    }
+                }
+            });
+    }
+
+    // The work behind selectPage, on a ContactExecutor thread.
+    private static void selectPageNow(final ForgeTask task, final JsonArray fields,
+                                      final int pageSize, final String cursorToken,
+                                      final CallContext ctx) {
+        if (pageSize <= 0) {
+            task.error("pageSize must be greater than zero", "BAD_INPUT", null);
+            return;
+        }
+
+        long afterId;
+        try {
+            afterId = Util.decodePageToken(cursorToken);
+        } catch (IllegalArgumentException e) {
+            task.error("Invalid cursor '" + cursorToken + "'", "BAD_INPUT", null);
+            return;
+        }
+
+        // Ask for one more row than we need: if it shows up, we know
+        // there's another page without having to issue another query.
+
+        Uri uri = ContactsContract.Contacts.CONTENT_URI.buildUpon()
+            .appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY,
+                                  String.valueOf(pageSize + 1))
+            .build();
+
+        Map<String, JsonObject> contacts = new LinkedHashMap<String, JsonObject>();
+        String lastId = null;
+        boolean hasMore = false;
+
+        Cursor cursor = Util.query(
+            uri,
+            new String[] {
+                ContactsContract.Contacts._ID,
+                ContactsContract.Contacts.DISPLAY_NAME
+            },
+            ContactsContract.Contacts._ID + " > ?",
+            new String[] { String.valueOf(afterId) },
+            ContactsContract.Contacts._ID + " ASC", ctx);
+        try {
+            while (cursor.moveToNext()) {
+                ctx.checkCancelled();
+                if (contacts.size() == pageSize) {
+                    hasMore = true;
+                    break;
+                }
+                String contactId = cursor.getString(0);
+                JsonObject contact = new JsonObject();
+                contact.addProperty("id", contactId);
+                contact.addProperty("displayName", cursor.getString(1));
+                contacts.put(contactId, contact);
+                lastId = contactId;
             }
-            task.success(results);
         } finally {
             cursor.close();
         }
+
+        if ((fields.size() != 0) && !contacts.isEmpty()) {
+            Util.populateContacts(contacts, fields, ctx);
+        }
+
+        JsonArray results = new JsonArray();
+        for (JsonObject value: contacts.values()) {
+            results.add(value);
+        }
+        ContactStats.contacts(results.size());
+
+        JsonObject page = new JsonObject();
+        page.add("contacts", results);
+        if (hasMore) {
+            page.addProperty("cursor", Util.encodePageToken(lastId));
+        } else {
+            page.add("cursor", JsonNull.INSTANCE);
+        }
+        ContactStats.bytes(page);
+        task.success(page);
+    }
+
+    /**
+     * Return only the contacts that have changed or been deleted since a
+     * given time, for incremental sync.  The result looks like
+     *
+     *     { "changed": [ ... ], "deleted": [ "id", ... ], "timestamp": 123,
+     *       "fullResync": false }
+     *
+     * where timestamp is the new high-water mark to pass in next time.
+     * This relies on CONTACT_LAST_UPDATED_TIMESTAMP and DeletedContacts,
+     * which only exist from Android 4.3 (API 18) on.
+     *
+     * The provider only keeps DeletedContacts rows for
+     * DAYS_KEPT_MILLISECONDS (30 days), so if since is older than that,
+     * deleted may be missing some contacts.  We still return what we
+     * have, but set fullResync to tell the caller to start again from a
+     * selectAll.
+     *
+     * @param task   Active Forge task
+     * @param since  Timestamp (ms since the epoch) of the last sync, or 0
+     * @param fields High-level fields to populate (see selectAll)
+     * @param handle  Handle for contact.cancel, or null/empty
+     * @param timeout Milliseconds before we give up, or 0 for never
+     */
+    public static void selectChangedSince(final ForgeTask task,
+                                          @ForgeParam("since") final long since,
+                                          @ForgeParam("fields") final JsonArray fields,
+                                          @ForgeParam("handle") final String handle,
+                                          @ForgeParam("timeout") final long timeout) {
+        final CallContext ctx = CallContext.open(handle, timeout);
+        ContactExecutor.read("selectChangedSince", ContactExecutor.NORMAL, task, new Runnable() {
+                public void run() {
+                    try {
+                        ctx.checkCancelled();
+                        selectChangedSinceNow(task, since, fields, ctx);
+                    } finally {
+                        ctx.close();
+                    }
+                }
+            });
+    }
+
+    // The work behind selectChangedSince, on a ContactExecutor thread.
+    @SuppressLint("NewApi")
+    private static void selectChangedSinceNow(final ForgeTask task, final long since,
+                                              final JsonArray fields, final CallContext ctx) {
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            task.error("selectChangedSince requires Android 4.3 or later",
+                       "UNAVAILABLE", null);
+            return;
+        }
+
+        Map<String, JsonObject> contacts = new LinkedHashMap<String, JsonObject>();
+        long highWater = since;
+
+        Cursor cursor = Util.query(
+            ContactsContract.Contacts.CONTENT_URI,
+            new String[] {
+                ContactsContract.Contacts._ID,
+                ContactsContract.Contacts.DISPLAY_NAME,
+                ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP
+            },
+            ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?",
+            new String[] { String.valueOf(since) },
+            ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " ASC", ctx);
+        try {
+            while (cursor.moveToNext()) {
+                ctx.checkCancelled();
+                String contactId = cursor.getString(0);
+                JsonObject contact = new JsonObject();
+                contact.addProperty("id", contactId);
+                contact.addProperty("displayName", cursor.getString(1));
+                contacts.put(contactId, contact);
+                highWater = Math.max(highWater, cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if ((fields.size() != 0) && !contacts.isEmpty()) {
+            Util.populateContacts(contacts, fields, ctx);
+        }
+
+        JsonArray deleted = new JsonArray();
+
+        cursor = Util.query(
+            ContactsContract.DeletedContacts.CONTENT_URI,
+            new String[] {
+                ContactsContract.DeletedContacts.CONTACT_ID,
+                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP
+            },
+            ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?",
+            new String[] { String.valueOf(since) },
+            ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " ASC", ctx);
+        try {
+            while (cursor.moveToNext()) {
+                ctx.checkCancelled();
+                deleted.add(new JsonPrimitive(cursor.getString(0)));
+                highWater = Math.max(highWater, cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        JsonArray changed = new JsonArray();
+        for (JsonObject value: contacts.values()) {
+            changed.add(value);
+        }
+        ContactStats.contacts(changed.size());
+
+        JsonObject result = new JsonObject();
+        result.add("changed", changed);
+        result.add("deleted", deleted);
+        result.addProperty("timestamp", highWater);
+        result.addProperty("fullResync", (since > 0) &&
+                           (since < System.currentTimeMillis()
+                            - ContactsContract.DeletedContacts.DAYS_KEPT_MILLISECONDS));
+        ContactStats.bytes(result);
+        task.success(result);
+    }
+
+    /**
+     * Find contacts matching a name, phone number or email address.
+     *
+     * The matching is done by the provider, through the filter URIs for
+     * contacts (names), phones and emails, so we only ever read the IDs
+     * of matching contacts and then hydrate just those.  Name matches
+     * come first, then phone matches, then email matches, each in the
+     * provider's own order, with duplicates dropped.
+     *
+     * @param task   Active Forge task
+     * @param query  Text to search for
+     * @param fields High-level fields to populate (see selectAll)
+     * @param limit   Maximum number of contacts to return
+     * @param handle  Handle for contact.cancel, or null/empty
+     * @param timeout Milliseconds before we give up, or 0 for never
+     */
+    public static void search(final ForgeTask task,
+                              @ForgeParam("query") final String query,
+                              @ForgeParam("fields") final JsonArray fields,
+                              @ForgeParam("limit") final int limit,
+                              @ForgeParam("handle") final String handle,
+                              @ForgeParam("timeout") final long timeout) {
+        final CallContext ctx = CallContext.open(handle, timeout);
+        ContactExecutor.read("search", ContactExecutor.INTERACTIVE, task, new Runnable() {
+                public void run() {
+                    try {
+                        ctx.checkCancelled();
+                        searchNow(task, query, fields, limit, ctx);
+                    } finally {
+                        ctx.close();
+                    }
+                }
+            });
+    }
+
+    // The work behind search, on a ContactExecutor thread.
+    private static void searchNow(final ForgeTask task, final String query,
+                                  final JsonArray fields, final int limit,
+                                  final CallContext ctx) {
+        if ((query == null) || (query.trim().length() == 0)) {
+            task.error("search query must not be empty", "BAD_INPUT", null);
+            return;
+        }
+        if (limit <= 0) {
+            task.error("limit must be greater than zero", "BAD_INPUT", null);
+            return;
+        }
+
+        Map<String, JsonObject> contacts = new LinkedHashMap<String, JsonObject>();
+
+        searchFilter(ContactsContract.Contacts.CONTENT_FILTER_URI, query,
+                     ContactsContract.Contacts._ID,
+                     ContactsContract.Contacts.DISPLAY_NAME,
+                     limit, contacts, ctx);
+        searchFilter(ContactsContract.CommonDataKinds.Phone.CONTENT_FILTER_URI, query,
+                     ContactsContract.CommonDataKinds.Phone.CONTACT_ID,
+                     ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME,
+                     limit, contacts, ctx);
+        searchFilter(ContactsContract.CommonDataKinds.Email.CONTENT_FILTER_URI, query,
+                     ContactsContract.CommonDataKinds.Email.CONTACT_ID,
+                     ContactsContract.CommonDataKinds.Email.DISPLAY_NAME,
+                     limit, contacts, ctx);
+
+        if ((fields.size() != 0) && !contacts.isEmpty()) {
+            Util.populateContacts(contacts, fields, ctx);
+        }
+
+        JsonArray results = new JsonArray();
+        for (JsonObject value: contacts.values()) {
+            results.add(value);
+        }
+        ContactStats.contacts(results.size());
+        ContactStats.bytes(results);
+        task.success(results);
+    }
+
+    /**
+     * Add the contacts matched by one of the provider's filter URIs to
+     * the search results, until we have limit of them.
+     *
+     * @param filterUri   CONTENT_FILTER_URI to search through
+     * @param query       Text to search for
+     * @param idColumn    Column holding the contact ID in filterUri
+     * @param nameColumn  Column holding the display name in filterUri
+     * @param limit       Maximum total number of results
+     * @param contacts    Results so far, in order; added to in place
+     * @param ctx         Context of the call we're working for
+     */
+    private static void searchFilter(Uri filterUri, String query,
+                                     String idColumn, String nameColumn,
+                                     int limit, Map<String, JsonObject> contacts,
+                                     CallContext ctx) {
+        int wanted = limit - contacts.size();
+
+        if (wanted <= 0) {
+            return;
+        }
+
+        // Phone and email filters return a row per matching number or
+        // address, so a contact can turn up more than once, and some
+        // of the rows may be contacts we already have.  Ask for enough
+        // rows to have a fair chance of filling the page anyway.
+        Uri uri = Uri.withAppendedPath(filterUri, Uri.encode(query)).buildUpon()
+            .appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY,
+                                  String.valueOf(limit + contacts.size()))
+            .build();
+
+        Cursor cursor = Util.query(uri,
+                                   new String[] { idColumn, nameColumn },
+                                   null, null, null, ctx);
+        try {
+            while (cursor.moveToNext() && (contacts.size() < limit)) {
+                ctx.checkCancelled();
+                String contactId = cursor.getString(0);
+                if (contacts.containsKey(contactId)) {
+                    continue;
+                }
+                JsonObject contact = new JsonObject();
+                contact.addProperty("id", contactId);
+                contact.addProperty("displayName", cursor.getString(1));
+                contacts.put(contactId, contact);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Work out which of a list of phone numbers belong to contacts, with
+     * one scan of the address book's phone numbers (see PhoneMatcher).
+     * The result maps each matching number, as given, to the IDs of the
+     * contacts it belongs to:
+     *
+     *     { "+1 555 123 4567": [ "12" ], ... }
+     *
+     * @param task    Active Forge task
+     * @param numbers Phone numbers to look for, in any format
+     */
+    public static void matchPhoneNumbers(final ForgeTask task,
+                                         @ForgeParam("numbers") final JsonArray numbers) {
+        ContactExecutor.read("matchPhoneNumbers", ContactExecutor.NORMAL, task, new Runnable() {
+                public void run() {
+                    if (numbers.size() == 0) {
+                        task.success(new JsonObject());
+                        return;
+                    }
+                    task.success(PhoneMatcher.scan(CallContext.NONE).match(numbers));
+                }
+            });
+    }
+
+    /**
+     * Type-ahead over display names.  Looks prefix up in NameIndex, which
+     * is built on the first call; after that, lookups don't touch the
+     * provider at all (changes are picked up by rebuilds in the
+     * background), so we answer them straight away rather than queueing
+     * them.
+     *
+     * @param task   Active Forge task
+     * @param prefix Text typed so far
+     * @param limit  Maximum number of contacts to return
+     */
+    public static void suggest(final ForgeTask task,
+                               @ForgeParam("prefix") final String prefix,
+                               @ForgeParam("limit") final int limit) {
+        if (limit <= 0) {
+            task.error("limit must be greater than zero", "BAD_INPUT", null);
+            return;
+        }
+
+        NameIndex index = NameIndex.current();
+
+        if (index != null) {
+            ContactStats.Call call = ContactStats.begin("suggest");
+            JsonArray results;
+            try {
+                results = index.lookup(prefix, limit);
+                ContactStats.contacts(results.size());
+            } finally {
+                call.end();
+            }
+            task.success(results);
+            return;
+        }
+
+        ContactExecutor.read("suggest", ContactExecutor.INTERACTIVE, task, new Runnable() {
+                public void run() {
+                    JsonArray results = NameIndex.build().lookup(prefix, limit);
+                    ContactStats.contacts(results.size());
+                    task.success(results);
+                }
+            });
+    }
+
+    /**
+     * Return the metrics ContactStats has gathered: per API method (and
+     * for internal phases like populateContacts), the number of calls,
+     * wall time totals and a latency histogram, cursor rows read,
+     * contacts returned, result bytes and applyBatch operations.
+     *
+     * @param task  Active Forge task
+     * @param reset true to clear the metrics once they've been read
+     */
+    public static void stats(final ForgeTask task,
+                             @ForgeParam("reset") final boolean reset) {
+        task.success(ContactStats.snapshot(reset));
+    }
+
+    /**
+     * Cancel a running selectAll, selectByIds, selectPage,
+     * selectChangedSince or search.  The
+     * cancelled call fails with EXPECTED_FAILURE; this call succeeds
+     * either way, with true if there was such a call still running.
+     * (A selectAll or selectByIds may be sharing its query with others,
+     * in which case the query carries on for them.)
+     *
+     * @param task   Active Forge task
+     * @param handle Handle the call was started with
+     */
+    public static void cancel(final ForgeTask task,
+                              @ForgeParam("handle") final String handle) {
+        task.success(new JsonPrimitive(SingleFlight.cancel(handle)
+                                       || CallContext.cancel(handle)));
+    }
+
+    /**
+     * Choose how photos are returned when the "photos" field is read.
+     *
+     * "inline" (the default) returns data: URLs containing the photo.
+     * "file" writes each photo once into the app's cache directory and
+     * returns a file:// URL instead, which is much lighter on memory and
+     * on the bridge.
+     *
+     * @param task Active Forge task
+     * @param mode "inline" or "file"
+     */
+    public static void setPhotoMode(final ForgeTask task,
+                                    @ForgeParam("mode") final String mode) {
+        if ("inline".equals(mode)) {
+            PhotoStore.setFileMode(false);
+        } else if ("file".equals(mode)) {
+            PhotoStore.setFileMode(true);
+        } else {
+            task.error("Unknown photo mode '" + mode + "'", "BAD_INPUT", null);
+            return;
+        }
+        task.success();
+    }
+
+    /**
+     * Turn on the in-memory contact cache used by selectById, selectAll
+     * and friends (everything that hydrates through
+     * Util.contactIdToJsonObject or Util.populateContacts; the
+     * streamContacts modes of selectAll bypass it).  The cache is
+     * invalidated whenever the contacts provider reports a change, so
+     * it's safe to leave on.
+     *
+     * @param task     Active Forge task
+     * @param maxSize  Maximum number of hydrated contacts to keep
+     */
+    public static void enableCache(final ForgeTask task,
+                                   @ForgeParam("maxSize") final int maxSize) {
+        if (maxSize <= 0) {
+            task.error("maxSize must be greater than zero", "BAD_INPUT", null);
+            return;
+        }
+        ContactCache.enable(maxSize);
+        task.success();
+    }
+
+    /**
+     * Turn off the in-memory contact cache and drop its contents.
+     *
+     * @param task Active Forge task
+     */
+    public static void disableCache(final ForgeTask task) {
+        ContactCache.disable();
+        task.success();
+    }
+
+    /**
+     * Turn measuring of result sizes on or off.  streamJson results are
+     * always measured, since they're already text; measuring the others
+     * means serializing them a second time, so it's off by default.
+     *
+     * @param task    Active Forge task
+     * @param enabled true to count the bytes of every result
+     */
+    public static void setMeasureBytes(final ForgeTask task,
+                                       @ForgeParam("enabled") final boolean enabled) {
+        ContactStats.setMeasureResults(enabled);
+        task.success();
+    }
+
+    /**
+     * Turn parallel hydration on or off.  When it's on, big reads split
+     * the contacts they have to fill in into one range of IDs per core
+     * and fetch the ranges concurrently.
+     *
+     * @param task    Active Forge task
+     * @param enabled true to hydrate in parallel
+     */
+    public static void setParallelHydration(final ForgeTask task,
+                                            @ForgeParam("enabled") final boolean enabled) {
+        Util.setParallelHydration(enabled);
+        task.success();
     }
 
     /**
@@ -148,13 +1052,11 @@ public class API {
         ArrayList<ContentProviderOperation> ops =
             Util.opsFromJSONObject(accountType, accountName, contact);
 
-        ContentResolver resolver = 
-            ForgeApp.getActivity().getContentResolver();
         ContentProviderResult[] results = null;
 
         try {
-            results = resolver.applyBatch(ContactsContract.AUTHORITY, 
-                                          ops);
+            results = ContactsClient.applyBatch(ops);
+            ContactStats.ops(ops.size());
         }
         catch (Exception e) {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -179,18 +1081,154 @@ public class API {
     }
 
     /**
-     * Add a single contact to the device.
+     * Add a batch of contacts, given an account type and account name.
      *
-     * @param task     ForgeTask to work within
-     * @param contact  W3C Contact object representing contact to add
+     * Ops for consecutive contacts are packed into applyBatch calls of
+     * at most MAX_BATCH_OPS operations, always splitting between
+     * contacts so back-references stay inside their batch.  If a batch
+     * fails, we retry its contacts one at a time so that one bad contact
+     * doesn't take its neighbours down with it.  That's only safe
+     * because a batch has no yield points, and so is one transaction: a
+     * failed batch leaves nothing behind to be inserted twice.
+     *
+     * @param task         Active Forge task
+     * @param contacts     W3C contact objects to add
+     * @param accountName  Account name to add contacts under
+     * @param accountType  Account type to add contacts under
+     * @returns Nothing, but calls task.success() with one result per
+     * contact, in order: either { "id": "..." } or { "error": "..." }.
+     */
+
+    private static void
+    addAllWithAccount(final ForgeTask task, final JsonArray contacts,
+                      String accountName, String accountType) {
+        JsonObject[] outcomes = new JsonObject[contacts.size()];
+
+        ArrayList<ContentProviderOperation> batch =
+            new ArrayList<ContentProviderOperation>();
+        ArrayList<Integer> batchContacts = new ArrayList<Integer>();
+        ArrayList<Integer> batchStarts = new ArrayList<Integer>();
+
+        for (int i = 0; i < contacts.size(); i++) {
+            if (!contacts.get(i).isJsonObject()) {
+                outcomes[i] = new JsonObject();
+                outcomes[i].addProperty("error", "not a contact object");
+                continue;
+            }
+
+            JsonObject contact = contacts.get(i).getAsJsonObject();
+            int start = Util.opsFromJSONObject(batch, accountType,
+                                               accountName, contact);
+
+            if ((batch.size() > MAX_BATCH_OPS) && (start > 0)) {
+                // This contact pushed us over the limit.  Take it back
+                // out, send what we had, and start a new batch with it.
+                batch.subList(start, batch.size()).clear();
+                applyContacts(batch, batchContacts, batchStarts,
+                              contacts, accountName, accountType, outcomes);
+
+                batch.clear();
+                batchContacts.clear();
+                batchStarts.clear();
+                start = Util.opsFromJSONObject(batch, accountType,
+                                               accountName, contact);
+            }
+
+            batchContacts.add(i);
+            batchStarts.add(start);
+        }
+
+        if (!batchContacts.isEmpty()) {
+            applyContacts(batch, batchContacts, batchStarts,
+                          contacts, accountName, accountType, outcomes);
+        }
+
+        JsonArray results = new JsonArray();
+        for (JsonObject outcome : outcomes) {
+            results.add(outcome);
+        }
+        task.success(results);
+    }
+
+    /**
+     * Apply one batch for addAllWithAccount, and record the outcome for
+     * every contact in it.
+     *
+     * @param batch         Ops for every contact in the batch
+     * @param batchContacts Index into contacts of each contact in batch
+     * @param batchStarts   Index into batch of each contact's raw
+     *                      contact insert
+     * @param contacts      All the contacts we were asked to add
+     * @param accountName   Account name to add contacts under
+     * @param accountType   Account type to add contacts under
+     * @param outcomes      Per-contact results, filled in here
+     */
+
+    private static void
+    applyContacts(ArrayList<ContentProviderOperation> batch,
+                  ArrayList<Integer> batchContacts,
+                  ArrayList<Integer> batchStarts,
+                  JsonArray contacts,
+                  String accountName, String accountType,
+                  JsonObject[] outcomes) {
+        try {
+            ContentProviderResult[] results =
+                ContactsClient.applyBatch(batch);
+
+            // Counted only once applied: a failed batch is rolled back,
+            // and its contacts are counted again as they're retried.
+            ContactStats.ops(batch.size());
+
+            for (int i = 0; i < batchContacts.size(); i++) {
+                Uri contactURI = results[batchStarts.get(i)].uri;
+                JsonObject outcome = new JsonObject();
+                outcome.addProperty("id", String.valueOf(ContentUris.parseId(contactURI)));
+                outcomes[batchContacts.get(i)] = outcome;
+            }
+            return;
+        }
+        catch (Exception e) {
+            if (batchContacts.size() == 1) {
+                ForgeLog.e("couldn't add contact " + batchContacts.get(0) + ": " + e);
+                JsonObject outcome = new JsonObject();
+                outcome.addProperty("error", "couldn't add contact: " + e);
+                outcomes[batchContacts.get(0)] = outcome;
+                return;
+            }
+            ForgeLog.w("batch of " + batchContacts.size() + 
+                       " contacts failed, retrying one at a time: " + e);
+        }
+
+        // Isolate the failure: one contact per batch.
+
+        for (Integer index : batchContacts) {
+            ArrayList<ContentProviderOperation> single =
+                new ArrayList<ContentProviderOperation>();
+            ArrayList<Integer> singleContact = new ArrayList<Integer>();
+            ArrayList<Integer> singleStart = new ArrayList<Integer>();
+
+            singleStart.add(Util.opsFromJSONObject(single, accountType, accountName,
+                                                   contacts.get(index).getAsJsonObject()));
+            singleContact.add(index);
+            applyContacts(single, singleContact, singleStart,
+                          contacts, accountName, accountType, outcomes);
+        }
+    }
+
+    /**
+     * Work out which account to add contacts under, then hand it to
+     * callback.
+     *
+     * We need an account under which to add these silly contacts.  Sadly, 
+     * the Right Way to do changed in Android 4 (Ice Cream Sandwich).
+     *
+     * @param task     Active Forge task (errors are reported here)
+     * @param callback Called with the chosen account name and type
      */
 
     @SuppressLint("NewApi")
-    public static void add(final ForgeTask task, 
-                           @ForgeParam("contact") final JsonObject contact) {
-        // We need an account under which to add this silly contact.  Sadly, 
-        // the Right Way to do changed in Android 4 (Ice Cream Sandwich).
-        //
+    private static void chooseAccount(final ForgeTask task,
+                                      final AccountCallback callback) {
         // So.  What up with our rev of Android?
 
         int currentAPIVersion = android.os.Build.VERSION.SDK_INT;
@@ -198,10 +1236,9 @@ public class API {
 
         if (currentAPIVersion < ICSAPIVersion) {
             // Prior to Ice Cream Sandwich, we can just pass null for the
-            // account name and account type.  addContactWithAccount will
-            // take care of the heavy lifting here, so off we go.
+            // account name and account type.
 
-            addContactWithAccount(task, contact, null, null);
+            callback.withAccount(null, null);
         }
         else {
             // On Ice Cream Sandwich and higher, it appears that the Right
@@ -243,11 +1280,9 @@ public class API {
                     }
 
                     // OK, if here, we have an accountName and
-                    // accountType, and we can use addContactWithAccount
-                    // for the heavy lifting.
+                    // accountType, so off we go.
 
-                    addContactWithAccount(task, contact,
-                                          accountName, accountType);
+                    callback.withAccount(accountName, accountType);
                 }
             };
             
@@ -263,5 +1298,145 @@ public class API {
             ForgeApp.intentWithHandler(intent, handler);
         }
     }
+
+    /**
+     * Add a single contact to the device.
+     *
+     * @param task     ForgeTask to work within
+     * @param contact  W3C Contact object representing contact to add
+     */
+
+    public static void add(final ForgeTask task, 
+                           @ForgeParam("contact") final JsonObject contact) {
+        // addContactWithAccount will take care of the heavy lifting
+        // once we know which account to use.
+
+        chooseAccount(task, new AccountCallback() {
+                public void withAccount(final String accountName, final String accountType) {
+                    ContactExecutor.write("add", task, new Runnable() {
+                            public void run() {
+                                addContactWithAccount(task, contact,
+                                                      accountName, accountType);
+                            }
+                        });
+                }
+            });
+    }
+
+    /**
+     * Add many contacts to the device in a handful of transactions.
+     *
+     * If account has both a "name" and a "type", contacts are added
+     * under that account; otherwise (including when account, or either
+     * of those, is JSON null) we pick one just like add() does, but
+     * only once for the whole lot.
+     *
+     * @param task     ForgeTask to work within
+     * @param contacts Array of W3C Contact objects to add
+     * @param account  { "name": ..., "type": ... }, or empty to choose
+     */
+
+    public static void addAll(final ForgeTask task,
+                              @ForgeParam("contacts") final JsonArray contacts,
+                              @ForgeParam("account") final JsonObject account) {
+        final AccountCallback addAll = new AccountCallback() {
+                public void withAccount(final String accountName, final String accountType) {
+                    ContactExecutor.write("addAll", task, new Runnable() {
+                            public void run() {
+                                addAllWithAccount(task, contacts,
+                                                  accountName, accountType);
+                            }
+                        });
+                }
+            };
+
+        String accountName = accountString(account, "name");
+        String accountType = accountString(account, "type");
+
+        if ((accountName != null) && (accountType != null)) {
+            addAll.withAccount(accountName, accountType);
+            return;
+        }
+
+        chooseAccount(task, addAll);
+    }
+
+    // A member of an account object, or null if the account or the
+    // member is missing or JSON null.
+    private static String accountString(JsonElement account, String key) {
+        if ((account == null) || !account.isJsonObject()) {
+            return null;
+        }
+        JsonElement value = account.getAsJsonObject().get(key);
+        return ((value == null) || value.isJsonNull()) ? null : value.getAsString();
+    }
+
+    /**
+     * Delete contacts, along with all their raw contacts and data, in
+     * batches of up to MAX_BATCH_OPS.
+     *
+     * This is here for the module's tests, which use it to clear out the
+     * contacts they add.  It isn't part of the JS API (module.js doesn't
+     * wrap it and it isn't documented); the tests reach it with
+     * forge.internal.call.
+     *
+     * Every ID is checked before anything is deleted, so bad input
+     * deletes nothing.  If a batch fails after earlier ones have gone
+     * through, the error says how many contacts were already deleted.
+     *
+     * @param task Active Forge task
+     * @param ids  Contact IDs; IDs that don't exist are ignored
+     * @returns Nothing, but calls task.success() with the number of
+     * contacts deleted.
+     */
+
+    public static void removeByIds(final ForgeTask task,
+                                   @ForgeParam("ids") final JsonArray ids) {
+        final long[] contactIds = new long[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            try {
+                contactIds[i] = Long.parseLong(ids.get(i).getAsString());
+            } catch (Exception e) {
+                task.error("Invalid contact id: " + ids.get(i), "BAD_INPUT", null);
+                return;
+            }
+        }
+
+        ContactExecutor.write("removeByIds", task, new Runnable() {
+                public void run() {
+                    removeByIdsNow(task, contactIds);
+                }
+            });
+    }
+
+    // The work behind removeByIds, on the ContactExecutor write thread.
+    private static void removeByIdsNow(final ForgeTask task, final long[] contactIds) {
+        ArrayList<ContentProviderOperation> batch =
+            new ArrayList<ContentProviderOperation>();
+        long removed = 0;
+
+        try {
+            for (int i = 0; i < contactIds.length; i++) {
+                batch.add(ContentProviderOperation.newDelete(
+                              ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI,
+                                                         contactIds[i]))
+                          .build());
+
+                if ((batch.size() == MAX_BATCH_OPS) || (i == contactIds.length - 1)) {
+                    for (ContentProviderResult result : ContactsClient.applyBatch(batch)) {
+                        removed += (result.count != null) ? result.count : 0;
+                    }
+                    ContactStats.ops(batch.size());
+                    batch.clear();
+                }
+            }
+        } catch (Exception e) {
+            ForgeLog.e("couldn't remove contacts: " + e);
+            task.error("couldn't remove contacts (" + removed + " already removed): " + e,
+                       "UNEXPECTED_FAILURE", null);
+            return;
+        }
+        task.success(new JsonPrimitive(removed));
+    }
 }
 
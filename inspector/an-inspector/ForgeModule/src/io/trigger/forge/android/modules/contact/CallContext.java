@@ -0,0 +1,216 @@
+package io.trigger.forge.android.modules.contact;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.annotation.SuppressLint;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+
+/**
+ * Per-call state for a contact query: mostly, whether anyone still wants
+ * the answer.
+ *
+ * JS hands us a handle for each cancellable call (and optionally a
+ * timeout).  We register a CallContext under that handle from the moment
+ * the call is queued until it finishes; contact.cancel(handle) or the
+ * deadline passing marks it cancelled, and a job that was cancelled
+ * while it waited fails before it touches the provider.  The
+ * long-running loops call checkCancelled() as they go, and provider
+ * queries get a CancellationSignal (on Jelly Bean and up) so that a
+ * query already in progress stops too.
+ *
+ * CallContext.NONE is never cancelled, for callers that don't care.
+ */
+
+class CallContext {
+    public static final CallContext NONE = new CallContext(null, 0);
+
+    private static final HashMap<String, CallContext> active =
+        new HashMap<String, CallContext>();
+
+    private static final ScheduledThreadPoolExecutor timer =
+        new ScheduledThreadPoolExecutor(1);
+
+    private final String handle;
+    private final long deadline;
+    private volatile String cancelled = null;
+    private ScheduledFuture<?> timeout = null;
+    private final ArrayList<Object> signals = new ArrayList<Object>();
+
+    private CallContext(String handle, long deadline) {
+        this.handle = handle;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Start a call.  Always pair this with close().
+     *
+     * @param handle    Handle JS may cancel us by, or null/empty
+     * @param timeoutMs Milliseconds before we give up, or 0 for never
+     * @return The new context
+     */
+
+    public static CallContext open(String handle, long timeoutMs) {
+        long deadline = (timeoutMs > 0) ? SystemClock.uptimeMillis() + timeoutMs : 0;
+        final CallContext ctx = new CallContext(handle, deadline);
+
+        if ((handle != null) && (handle.length() > 0)) {
+            synchronized (active) {
+                active.put(handle, ctx);
+            }
+        }
+
+        if (timeoutMs > 0) {
+            // The loops notice the deadline on their own, but a query
+            // that's stuck inside the provider needs a nudge.
+            ctx.timeout = timer.schedule(new Runnable() {
+                    public void run() {
+                        ctx.cancel("Contact query timed out");
+                    }
+                }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        return ctx;
+    }
+
+    /**
+     * Cancel the call registered under a handle, if it's still running.
+     *
+     * @param handle Handle passed to open()
+     * @return true if there was such a call
+     */
+
+    public static boolean cancel(String handle) {
+        CallContext ctx;
+
+        synchronized (active) {
+            ctx = active.get(handle);
+        }
+        if (ctx == null) {
+            return false;
+        }
+        ctx.cancel("Contact query cancelled");
+        return true;
+    }
+
+    /**
+     * Finish a call: forget its handle and stop its timer.
+     */
+
+    public void close() {
+        if (this == NONE) {
+            return;
+        }
+        if (this.handle != null) {
+            synchronized (active) {
+                if (active.get(this.handle) == this) {
+                    active.remove(this.handle);
+                }
+            }
+        }
+        if (this.timeout != null) {
+            this.timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Mark this call cancelled, and interrupt any provider query using
+     * our CancellationSignal.
+     *
+     * @param reason Message to report to the caller
+     */
+
+    @SuppressLint("NewApi")
+    public void cancel(String reason) {
+        if (this == NONE) {
+            return;
+        }
+
+        ArrayList<Object> signals;
+
+        synchronized (this) {
+            if (this.cancelled != null) {
+                return;
+            }
+            this.cancelled = reason;
+            signals = new ArrayList<Object>(this.signals);
+        }
+
+        for (Object signal : signals) {
+            ((CancellationSignal) signal).cancel();
+        }
+    }
+
+    /**
+     * @return true if the call has been cancelled or has run out of time
+     */
+
+    public boolean isCancelled() {
+        if (this.cancelled != null) {
+            return true;
+        }
+        if ((this.deadline != 0) && (SystemClock.uptimeMillis() > this.deadline)) {
+            cancel("Contact query timed out");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Bail out if nobody wants our answer any more.  Call this from
+     * inside cursor loops.
+     *
+     * @throws ContactCancelledException if the call has been cancelled
+     */
+
+    public void checkCancelled() {
+        if (isCancelled()) {
+            throw new ContactCancelledException(this.cancelled);
+        }
+    }
+
+    /**
+     * Get a CancellationSignal to pass to a provider query.  Each query
+     * needs its own (a signal only keeps track of one remote query, and
+     * parallel hydration runs several at once); cancelling the call
+     * cancels them all.  Only call this on Jelly Bean (API 16) and up.
+     *
+     * @return A CancellationSignal (as an Object, so that this class
+     *         still loads on older releases), or null for NONE
+     */
+
+    @SuppressLint("NewApi")
+    public Object signal() {
+        if (this == NONE) {
+            return null;
+        }
+
+        CancellationSignal signal = new CancellationSignal();
+
+        synchronized (this) {
+            this.signals.add(signal);
+        }
+
+        // We may have been cancelled before anyone asked for the signal.
+        if (this.cancelled != null) {
+            signal.cancel();
+        }
+        return signal;
+    }
+}
+
+/**
+ * Thrown out of contact queries when their CallContext is cancelled.
+ * ContactExecutor reports it to the task as an EXPECTED_FAILURE.
+ */
+
+class ContactCancelledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ContactCancelledException(String reason) {
+        super(reason);
+    }
+}
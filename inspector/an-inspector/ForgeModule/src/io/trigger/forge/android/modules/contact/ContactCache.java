@@ -0,0 +1,178 @@
+package io.trigger.forge.android.modules.contact;
+
+import io.trigger.forge.android.core.ForgeLog;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.provider.ContactsContract;
+
+import com.google.gson.JsonObject;
+
+/**
+ * An opt-in, bounded LRU cache of hydrated contacts, sitting in front of
+ * Util.contactIdToJsonObject and Util.populateContacts.
+ *
+ * Entries are keyed by query plan and contact ID, since the same contact
+ * hydrated with different fields is a different JSON object.  We keep
+ * the cache honest with a ContentObserver on the Contacts URI: if the
+ * provider tells us which contact changed we drop just that contact,
+ * otherwise we drop everything.
+ *
+ * There's a race to worry about: a query that started before a change
+ * notification could otherwise put stale data back into the cache after
+ * we've cleared it.  To stop that, every invalidation bumps a
+ * generation counter, readers grab the generation before they query,
+ * and put() ignores anything from an older generation.
+ *
+ * The cache hands out shared JsonObjects, so nothing may modify a
+ * contact once it has been hydrated.
+ */
+
+class ContactCache {
+    private static ContactCache instance = null;
+
+    private final LinkedHashMap<String, JsonObject> entries;
+    private final ContentObserver observer;
+    private int generation = 0;
+
+    private ContactCache(final int maxSize) {
+        // accessOrder = true makes this an LRU map.
+        this.entries = new LinkedHashMap<String, JsonObject>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JsonObject> eldest) {
+                return size() > maxSize;
+            }
+        };
+
+        this.observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate(null);
+            }
+
+            // No @Override: this only exists from API 16 on, where it's
+            // what the framework calls.  Earlier releases call the
+            // one-argument version above.
+            public void onChange(boolean selfChange, Uri uri) {
+                invalidate(uri);
+            }
+        };
+    }
+
+    /**
+     * Turn the cache on (or resize it, dropping its contents).
+     *
+     * @param maxSize Maximum number of cached contacts
+     */
+
+    public static synchronized void enable(int maxSize) {
+        disable();
+
+        instance = new ContactCache(maxSize);
+        ContactsClient.resolver().registerContentObserver(
+            ContactsContract.Contacts.CONTENT_URI, true, instance.observer);
+    }
+
+    /**
+     * Turn the cache off and forget everything in it.
+     */
+
+    public static synchronized void disable() {
+        if (instance != null) {
+            ContactsClient.resolver().unregisterContentObserver(instance.observer);
+            instance = null;
+        }
+    }
+
+    /**
+     * @return The active cache, or null if caching is off
+     */
+
+    public static synchronized ContactCache get() {
+        return instance;
+    }
+
+    private static String key(QueryPlan plan, String contactId) {
+        return plan.key + ":" + contactId;
+    }
+
+    /**
+     * @return The current generation; pass it back in to put()
+     */
+
+    public synchronized int generation() {
+        return this.generation;
+    }
+
+    /**
+     * Look up a contact.
+     *
+     * @param plan      Query plan the contact would be hydrated with
+     * @param contactId Contact ID
+     * @return The cached contact, or null on a miss
+     */
+
+    public synchronized JsonObject get(QueryPlan plan, String contactId) {
+        return this.entries.get(key(plan, contactId));
+    }
+
+    /**
+     * Remember a freshly-hydrated contact, unless the cache has been
+     * invalidated since the caller started reading.
+     *
+     * @param plan       Query plan the contact was hydrated with
+     * @param contactId  Contact ID
+     * @param contact    Hydrated contact
+     * @param generation Result of generation() from before the query
+     */
+
+    public synchronized void put(QueryPlan plan, String contactId,
+                                 JsonObject contact, int generation) {
+        if (generation == this.generation) {
+            this.entries.put(key(plan, contactId), contact);
+        }
+    }
+
+    /**
+     * Drop cached contacts in response to a change notification.
+     *
+     * @param uri The URI that changed, or null if we don't know
+     */
+
+    private synchronized void invalidate(Uri uri) {
+        this.generation++;
+
+        long contactId = -1;
+
+        if ((uri != null) && uri.toString().startsWith(
+                ContactsContract.Contacts.CONTENT_URI.toString() + "/")) {
+            try {
+                contactId = ContentUris.parseId(uri);
+            } catch (NumberFormatException e) {
+                // Lookup URI or some such; fall through and drop everything.
+            }
+        }
+
+        if (contactId < 0) {
+            ForgeLog.d("contact cache: dropping everything for " + uri);
+            this.entries.clear();
+            return;
+        }
+
+        String suffix = ":" + contactId;
+        Iterator<String> keys = this.entries.keySet().iterator();
+
+        while (keys.hasNext()) {
+            if (keys.next().endsWith(suffix)) {
+                keys.remove();
+            }
+        }
+    }
+}
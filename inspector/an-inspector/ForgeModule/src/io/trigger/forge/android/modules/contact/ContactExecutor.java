@@ -0,0 +1,291 @@
+package io.trigger.forge.android.modules.contact;
+
+import io.trigger.forge.android.core.ForgeLog;
+import io.trigger.forge.android.core.ForgeTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+
+/**
+ * Where the contact module does its work.
+ *
+ * Forge calls API methods on whatever thread it likes, and intent result
+ * handlers arrive on the UI thread, so nothing in API should touch the
+ * contacts provider directly.  Instead, everything goes through here:
+ *
+ * - Reads go to a small pool with a priority queue, so a selectById
+ *   doesn't sit behind a selectAll of the whole address book.
+ * - Writes go to a single thread, in order, so concurrent adds don't
+ *   fight over the provider's write lock.
+ * - A read can fan its hydration out over a pool with a thread per core
+ *   (see runAll).  That's a separate pool so that a read waiting on its
+ *   parts can never be waiting on itself.
+ * - Identical reads queued at the same time can share one job, and
+ *   report to all their tasks through a SingleFlight.
+ *
+ * Both pools use background-priority threads that die off when idle.
+ * Anything a job throws is reported to its task as an
+ * UNEXPECTED_FAILURE rather than killing the worker, except for a
+ * ContactCancelledException, which is an EXPECTED_FAILURE.  Each job is
+ * also recorded as a ContactStats call, named after the API method.
+ */
+
+class ContactExecutor {
+    /** Priority for small, latency-sensitive reads (selectById, select) */
+    public static final int INTERACTIVE = 0;
+
+    /** Priority for reads of a bounded number of contacts */
+    public static final int NORMAL = 1;
+
+    /** Priority for reads of the whole address book */
+    public static final int BULK = 2;
+
+    private static final int READ_THREADS = 2;
+    private static final long IDLE_SECONDS = 30;
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private static final ThreadPoolExecutor readPool =
+        new ThreadPoolExecutor(READ_THREADS, READ_THREADS,
+                               IDLE_SECONDS, TimeUnit.SECONDS,
+                               new PriorityBlockingQueue<Runnable>(),
+                               new Factory("contact-read"));
+
+    private static final ThreadPoolExecutor writePool =
+        new ThreadPoolExecutor(1, 1,
+                               IDLE_SECONDS, TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>(),
+                               new Factory("contact-write"));
+
+    private static final int CORES = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final ThreadPoolExecutor partPool =
+        new ThreadPoolExecutor(CORES, CORES,
+                               IDLE_SECONDS, TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>(),
+                               new Factory("contact-part"));
+
+    static {
+        readPool.allowCoreThreadTimeOut(true);
+        writePool.allowCoreThreadTimeOut(true);
+        partPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return How many parts it's worth splitting work into
+     */
+
+    public static int parallelism() {
+        return CORES;
+    }
+
+    /**
+     * Names our threads and drops them to background priority.
+     */
+
+    private static class Factory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        Factory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name + "-" + count.incrementAndGet());
+        }
+    }
+
+    /**
+     * A job, ordered by priority and then by submission order.  We hand
+     * these straight to execute() (not submit(), which would wrap them)
+     * so the PriorityBlockingQueue can compare them.
+     */
+
+    private static class Job implements Runnable, Comparable<Job> {
+        private final String name;
+        private final int priority;
+        private final long seq;
+        private final ForgeTask task;
+        private final SingleFlight flight;
+        private final Runnable body;
+
+        Job(String name, int priority, ForgeTask task, SingleFlight flight, Runnable body) {
+            this.name = name;
+            this.priority = priority;
+            this.seq = sequence.getAndIncrement();
+            this.task = task;
+            this.flight = flight;
+            this.body = body;
+        }
+
+        public int compareTo(Job other) {
+            if (this.priority != other.priority) {
+                return (this.priority < other.priority) ? -1 : 1;
+            }
+            return (this.seq < other.seq) ? -1 : ((this.seq == other.seq) ? 0 : 1);
+        }
+
+        public void run() {
+            ContactStats.Call call = ContactStats.begin(name);
+
+            try {
+                body.run();
+            } catch (ContactCancelledException e) {
+                fail(e.getMessage(), "EXPECTED_FAILURE");
+            } catch (Throwable e) {
+                ForgeLog.e("contact job failed: " + e);
+                fail("Error accessing contacts: " + e, "UNEXPECTED_FAILURE");
+            } finally {
+                call.end();
+            }
+        }
+
+        private void fail(String message, String type) {
+            if (flight != null) {
+                flight.error(message, type, null);
+            } else if (task != null) {
+                task.error(message, type, null);
+            }
+        }
+    }
+
+    /**
+     * Queue a read.
+     *
+     * @param name     API method, for ContactStats
+     * @param priority INTERACTIVE, NORMAL or BULK
+     * @param task     Task to report unexpected failures to
+     * @param body     The work; it's responsible for calling task.success
+     *                 or task.error itself
+     */
+
+    public static void read(String name, int priority, ForgeTask task, Runnable body) {
+        readPool.execute(new Job(name, priority, task, null, body));
+    }
+
+    /**
+     * Queue a read on behalf of every task aboard a SingleFlight.
+     *
+     * @param name     API method, for ContactStats
+     * @param priority INTERACTIVE, NORMAL or BULK
+     * @param flight   Flight to report unexpected failures to
+     * @param body     The work; it's responsible for calling
+     *                 flight.success or flight.error itself
+     */
+
+    public static void read(String name, int priority, SingleFlight flight, Runnable body) {
+        readPool.execute(new Job(name, priority, null, flight, body));
+    }
+
+    /**
+     * Queue a read that no task is waiting for, such as refreshing an
+     * index.  Failures are only logged.
+     *
+     * @param name     Name for ContactStats
+     * @param priority INTERACTIVE, NORMAL or BULK
+     * @param body     The work
+     */
+
+    public static void background(String name, int priority, Runnable body) {
+        readPool.execute(new Job(name, priority, null, null, body));
+    }
+
+    /**
+     * Queue a write.  Writes run one at a time, in the order queued.
+     *
+     * @param name API method, for ContactStats
+     * @param task Task to report unexpected failures to
+     * @param body The work; it's responsible for calling task.success or
+     *             task.error itself
+     */
+
+    public static void write(String name, ForgeTask task, final Runnable body) {
+        // Reads that come after this write mustn't share a query that
+        // may have started before it -- including reads made after it
+        // has called back, so keep flights closed until it's done.
+        SingleFlight.land();
+        writePool.execute(new Job(name, NORMAL, task, null, new Runnable() {
+                public void run() {
+                    try {
+                        body.run();
+                    } finally {
+                        SingleFlight.resume();
+                    }
+                }
+            }));
+    }
+
+    /**
+     * Run some independent parts of a job concurrently, fork/join style:
+     * the first part runs on the calling thread and the rest on the part
+     * pool, and we return once they've all finished.
+     *
+     * @param parts The parts to run
+     * @throws RuntimeException the first exception any part threw (after
+     *         every part has finished)
+     */
+
+    public static void runAll(List<Runnable> parts) {
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>(parts.size());
+        RuntimeException failure = null;
+
+        for (int i = 1; i < parts.size(); i++) {
+            futures.add(partPool.submit(parts.get(i)));
+        }
+
+        try {
+            if (!parts.isEmpty()) {
+                parts.get(0).run();
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        // Always wait for everything: the parts write into objects our
+        // caller is about to use.
+        for (Future<?> future : futures) {
+            boolean interrupted = false;
+
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        Throwable cause = e.getCause();
+                        failure = (cause instanceof RuntimeException)
+                            ? (RuntimeException) cause
+                            : new RuntimeException(cause);
+                    }
+                    break;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
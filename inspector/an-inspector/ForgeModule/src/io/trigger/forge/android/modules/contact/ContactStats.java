@@ -0,0 +1,321 @@
+package io.trigger.forge.android.modules.contact;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.os.SystemClock;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Cheap, always-on metrics for the contact module, so that we can tell
+ * whether a slow call is spending its time in the provider, in building
+ * JSON or somewhere else.
+ *
+ * Work is recorded as named calls: ContactExecutor opens one per API
+ * call (named after the method), and Util opens nested ones for phases
+ * like populateContacts.  While a call is open on a thread, the
+ * counters -- cursor rows read, contacts returned, bytes of JSON returned,
+ * applyBatch operations -- are credited to it and to every call it's
+ * nested in.  When a call closes, its wall time goes into a latency
+ * histogram for its name.
+ *
+ * Everything is per-thread until a call closes, so the only lock is the
+ * one around the aggregates, taken once per call.
+ */
+
+class ContactStats {
+    // Upper bounds (inclusive, in ms) of the histogram buckets; there's
+    // one more bucket for everything slower.
+    private static final long[] BUCKETS_MS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000
+    };
+
+    private static final ThreadLocal<Call> current = new ThreadLocal<Call>();
+
+    private static final TreeMap<String, Metric> metrics = new TreeMap<String, Metric>();
+    private static long since = System.currentTimeMillis();
+
+    // Measuring a result that isn't already text means serializing it
+    // a second time, so that's only done on request.  The Gson writes
+    // what the bridge does: no HTML escaping, nulls kept.
+    private static volatile boolean measureResults = false;
+    private static final Gson gson =
+        new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
+
+    /**
+     * Aggregates for every call with a given name.
+     */
+
+    private static class Metric {
+        long calls = 0;
+        long totalMs = 0;
+        long maxMs = 0;
+        long rows = 0;
+        long contacts = 0;
+        long bytes = 0;
+        long ops = 0;
+        final long[] histogram = new long[BUCKETS_MS.length + 1];
+
+        void add(Call call, long elapsedMs) {
+            calls++;
+            totalMs += elapsedMs;
+            maxMs = Math.max(maxMs, elapsedMs);
+            rows += call.rows;
+            contacts += call.contacts;
+            bytes += call.bytes;
+            ops += call.ops;
+
+            int bucket = 0;
+            while ((bucket < BUCKETS_MS.length) && (elapsedMs > BUCKETS_MS[bucket])) {
+                bucket++;
+            }
+            histogram[bucket]++;
+        }
+
+        JsonObject toJSON() {
+            JsonObject json = new JsonObject();
+            json.addProperty("calls", calls);
+            json.addProperty("totalMs", totalMs);
+            json.addProperty("meanMs", (calls > 0) ? ((double) totalMs / calls) : 0);
+            json.addProperty("maxMs", maxMs);
+            json.addProperty("rows", rows);
+            json.addProperty("contacts", contacts);
+            json.addProperty("bytes", bytes);
+            json.addProperty("ops", ops);
+
+            JsonObject buckets = new JsonObject();
+            for (int i = 0; i < BUCKETS_MS.length; i++) {
+                buckets.addProperty("<=" + BUCKETS_MS[i] + "ms", histogram[i]);
+            }
+            buckets.addProperty(">" + BUCKETS_MS[BUCKETS_MS.length - 1] + "ms",
+                                histogram[BUCKETS_MS.length]);
+            json.add("histogram", buckets);
+            return json;
+        }
+    }
+
+    /**
+     * A call in progress on the current thread.  Always end() it, in a
+     * finally block.
+     */
+
+    public static class Call {
+        private final String name;
+        private final Call outer;
+        private final long start;
+        final Thread thread;
+        long rows = 0;
+        long contacts = 0;
+        long bytes = 0;
+        long ops = 0;
+
+        private Call(String name, Call outer) {
+            this.name = name;
+            this.outer = outer;
+            this.start = SystemClock.uptimeMillis();
+            this.thread = Thread.currentThread();
+        }
+
+        /**
+         * Close the call and fold it into the aggregates.
+         */
+
+        public void end() {
+            long elapsed = SystemClock.uptimeMillis() - this.start;
+
+            current.set(this.outer);
+
+            synchronized (metrics) {
+                Metric metric = metrics.get(this.name);
+                if (metric == null) {
+                    metric = new Metric();
+                    metrics.put(this.name, metric);
+                }
+                metric.add(this, elapsed);
+            }
+        }
+    }
+
+    /**
+     * Open a call on the current thread.
+     *
+     * @param name What to file it under, usually the API method
+     * @return The call, to end() when it's done
+     */
+
+    public static Call begin(String name) {
+        Call call = new Call(name, current.get());
+        current.set(call);
+        return call;
+    }
+
+    /**
+     * Credit cursor rows read to the calls open on this thread.
+     */
+
+    public static void rows(long count) {
+        for (Call call = current.get(); call != null; call = call.outer) {
+            call.rows += count;
+        }
+    }
+
+    /**
+     * Credit contacts returned to the calls open on this thread.
+     */
+
+    public static void contacts(long count) {
+        for (Call call = current.get(); call != null; call = call.outer) {
+            call.contacts += count;
+        }
+    }
+
+    /**
+     * Credit JSON bytes written to the calls open on this thread.
+     */
+
+    public static void bytes(long count) {
+        for (Call call = current.get(); call != null; call = call.outer) {
+            call.bytes += count;
+        }
+    }
+
+    /**
+     * Credit JSON text we're returning to the calls open on this thread,
+     * as its length in UTF-8.  This is just a pass over the characters,
+     * so it's always on.
+     *
+     * @param json Serialized result
+     */
+
+    public static void bytes(String json) {
+        ByteCounter counter = new ByteCounter();
+        counter.write(json, 0, json.length());
+        bytes(counter.count);
+    }
+
+    /**
+     * Credit a call's result to the calls open on this thread, as the
+     * number of bytes it takes up as UTF-8 JSON -- if setMeasureResults
+     * has turned that on.  The result is serialized into a counter
+     * rather than a string, but that's still a second walk over all of
+     * it, which is too much for always-on stats.
+     *
+     * @param result What the call is about to hand to task.success()
+     */
+
+    public static void bytes(JsonElement result) {
+        if (!measureResults) {
+            return;
+        }
+
+        ByteCounter counter = new ByteCounter();
+        try {
+            JsonWriter writer = new JsonWriter(counter);
+            gson.toJson(result, writer);
+            writer.close();
+        } catch (IOException e) {
+            // ByteCounter doesn't throw.
+            throw new IllegalStateException(e);
+        }
+        bytes(counter.count);
+    }
+
+    /**
+     * Turn measuring of results that aren't already text on or off (see
+     * bytes(JsonElement)).
+     *
+     * @param enabled true to measure every result
+     */
+
+    public static void setMeasureResults(boolean enabled) {
+        measureResults = enabled;
+    }
+
+    /**
+     * A Writer that keeps nothing but the UTF-8 length of what it's
+     * given.
+     */
+
+    private static class ByteCounter extends Writer {
+        long count = 0;
+
+        private void add(char c) {
+            if (c < 0x80) {
+                count += 1;
+            } else if ((c < 0x800)
+                       || ((c >= Character.MIN_SURROGATE) && (c <= Character.MAX_SURROGATE))) {
+                // Each half of a surrogate pair is two of its four bytes.
+                count += 2;
+            } else {
+                count += 3;
+            }
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                add(chars[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                add(str.charAt(i));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Credit applyBatch operations to the calls open on this thread.
+     */
+
+    public static void ops(long count) {
+        for (Call call = current.get(); call != null; call = call.outer) {
+            call.ops += count;
+        }
+    }
+
+    /**
+     * Everything recorded since the last reset, as
+     *
+     *     { "since": ms, "calls": { "selectAll": { ... }, ... } }
+     *
+     * @param reset true to start over afterwards
+     * @return The snapshot
+     */
+
+    public static JsonObject snapshot(boolean reset) {
+        JsonObject json = new JsonObject();
+        JsonObject calls = new JsonObject();
+
+        synchronized (metrics) {
+            json.addProperty("since", since);
+            for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+                calls.add(entry.getKey(), entry.getValue().toJSON());
+            }
+            if (reset) {
+                metrics.clear();
+                since = System.currentTimeMillis();
+            }
+        }
+
+        json.add("calls", calls);
+        return json;
+    }
+}
@@ -0,0 +1,187 @@
+package io.trigger.forge.android.modules.contact;
+
+import io.trigger.forge.android.core.ForgeApp;
+import io.trigger.forge.android.core.ForgeLog;
+
+import java.util.ArrayList;
+
+import android.annotation.SuppressLint;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+import android.provider.ContactsContract;
+
+/**
+ * The module's one connection to the contacts provider.
+ *
+ * ContentResolver.query and applyBatch acquire the provider, make the
+ * call and release it again every time, which is a good chunk of the
+ * cost of a small query like selectById.  Instead we hold on to a
+ * ContentProviderClient for the contacts authority, acquired through the
+ * application context so that it doesn't keep an Activity alive, and
+ * send everything through it.
+ *
+ * On Jelly Bean and up the client is an unstable one: if the provider
+ * process dies, we get a DeadObjectException rather than being killed
+ * along with it.  Then we drop the client and acquire a fresh one.
+ * Reads are retried once on the new client; writes aren't, since we
+ * can't tell whether the batch was applied before the provider went
+ * away.  Older releases only have stable clients, so there a provider
+ * crash takes us down too and none of that comes into play.
+ *
+ * Several threads use the client at once, so it's reference counted: a
+ * client that's been dropped is only released once the last call using
+ * it has returned.
+ */
+
+class ContactsClient {
+    /**
+     * A client and the number of calls using it.
+     */
+
+    private static class Lease {
+        final ContentProviderClient client;
+        int users = 0;
+        boolean dropped = false;
+
+        Lease(ContentProviderClient client) {
+            this.client = client;
+        }
+    }
+
+    private static Lease current = null;
+
+    /**
+     * @return The application's ContentResolver, which (unlike the
+     *         Activity's) is good for as long as the process is
+     */
+
+    public static ContentResolver resolver() {
+        return ForgeApp.getActivity().getApplicationContext().getContentResolver();
+    }
+
+    /**
+     * Take a lease on the current client, acquiring one if need be.
+     * Always give it back with release().
+     *
+     * @return The lease
+     */
+
+    @SuppressLint("NewApi")
+    private static synchronized Lease acquire() {
+        if (current == null) {
+            ContentProviderClient client;
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                client = resolver().acquireUnstableContentProviderClient(
+                    ContactsContract.AUTHORITY);
+            } else {
+                client = resolver().acquireContentProviderClient(ContactsContract.AUTHORITY);
+            }
+            if (client == null) {
+                throw new IllegalStateException("Contacts provider is unavailable");
+            }
+            current = new Lease(client);
+        }
+        current.users++;
+        return current;
+    }
+
+    /**
+     * Give back a lease taken with acquire().
+     *
+     * @param lease The lease
+     */
+
+    private static synchronized void release(Lease lease) {
+        lease.users--;
+        if (lease.dropped && (lease.users == 0)) {
+            lease.client.release();
+        }
+    }
+
+    /**
+     * Forget a client that's stopped working, so the next call acquires
+     * a new one.  It's released once everyone using it has let go.
+     *
+     * @param dead The lease on the client that failed
+     */
+
+    private static synchronized void discard(Lease dead) {
+        if (current == dead) {
+            ForgeLog.w("contacts provider died; reconnecting");
+            current = null;
+            dead.dropped = true;
+        }
+    }
+
+    /**
+     * Query the contacts provider.
+     *
+     * @param uri        content URI to query; must belong to the
+     *                   contacts authority
+     * @param projection columns to return
+     * @param selection  selection, or null
+     * @param args       selection arguments, or null
+     * @param sortOrder  sort order, or null
+     * @param signal     a CancellationSignal (API 16 and up), or null
+     * @return the cursor, or null if the provider returned none
+     */
+
+    @SuppressLint("NewApi")
+    public static Cursor query(Uri uri, String[] projection, String selection,
+                               String[] args, String sortOrder, Object signal) {
+        for (int attempt = 0; ; attempt++) {
+            Lease lease = acquire();
+
+            try {
+                if (signal != null) {
+                    return lease.client.query(uri, projection, selection, args, sortOrder,
+                                              (CancellationSignal) signal);
+                }
+                return lease.client.query(uri, projection, selection, args, sortOrder);
+            } catch (DeadObjectException e) {
+                discard(lease);
+                if (attempt > 0) {
+                    throw new IllegalStateException("Contacts provider died", e);
+                }
+            } catch (RemoteException e) {
+                throw new IllegalStateException("Contacts provider failed", e);
+            } finally {
+                release(lease);
+            }
+        }
+    }
+
+    /**
+     * Apply a batch of operations to the contacts provider.
+     *
+     * @param ops Operations to apply
+     * @return Their results
+     * @throws RemoteException if the provider died (the next call will
+     *         reconnect)
+     * @throws OperationApplicationException if an operation failed
+     */
+
+    public static ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+        throws RemoteException, OperationApplicationException {
+        Lease lease = acquire();
+
+        try {
+            return lease.client.applyBatch(ops);
+        } catch (DeadObjectException e) {
+            discard(lease);
+            throw e;
+        } finally {
+            release(lease);
+        }
+    }
+}
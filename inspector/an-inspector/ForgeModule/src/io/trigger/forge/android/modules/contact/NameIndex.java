@@ -0,0 +1,264 @@
+package io.trigger.forge.android.modules.contact;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * An in-memory prefix index over contact display names, for type-ahead.
+ *
+ * Each name is normalized (accents folded, lower-cased, punctuation
+ * turned into single spaces) and indexed under every suffix that starts
+ * at a word boundary, so "Anne-Marie O'Neil" can be found by "anne",
+ * "marie o" or "o neil".  The keys live in one sorted array, so a lookup
+ * is a binary search plus a short forward scan, with no provider access
+ * at all.
+ *
+ * The index is built on first use from a single _ID/DISPLAY_NAME scan
+ * of Contacts.  After that, a ContentObserver queues a rebuild in the
+ * background whenever the address book changes, and lookups carry on
+ * using the old index until the new one is ready, so a keystroke never
+ * waits for a scan.  Built indexes are immutable, so lookups never need
+ * a lock.
+ */
+
+class NameIndex {
+    private static volatile NameIndex current = null;
+    private static volatile boolean stale = true;
+    private static ContentObserver observer = null;
+
+    // True while a rebuild is queued but hasn't started scanning yet, so
+    // a burst of notifications only queues one.
+    private static final AtomicBoolean queued = new AtomicBoolean(false);
+
+    private final String[] keys;
+    private final int[] owners;
+    private final String[] ids;
+    private final String[] names;
+
+    private NameIndex(String[] keys, int[] owners, String[] ids, String[] names) {
+        this.keys = keys;
+        this.owners = owners;
+        this.ids = ids;
+        this.names = names;
+    }
+
+    /**
+     * @return The latest index built, which may be a rebuild behind the
+     *         address book, or null if there isn't one yet and it needs
+     *         to be built with build()
+     */
+
+    public static NameIndex current() {
+        return current;
+    }
+
+    /**
+     * Queue a rebuild in the background, unless one is already queued.
+     * Until it's done, current() keeps returning the old index.
+     */
+
+    private static void refresh() {
+        if (!queued.compareAndSet(false, true)) {
+            return;
+        }
+        ContactExecutor.background("nameIndex", ContactExecutor.BULK, new Runnable() {
+                public void run() {
+                    queued.set(false);
+                    try {
+                        build();
+                    } catch (RuntimeException e) {
+                        // Let the next notification (or build()) try again.
+                        stale = true;
+                        throw e;
+                    }
+                }
+            });
+    }
+
+    /**
+     * Get a current index, building it if need be.  This reads the whole
+     * Contacts table, so don't call it on the UI thread.
+     *
+     * @return The index
+     */
+
+    public static synchronized NameIndex build() {
+        if (observer == null) {
+            observer = new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        stale = true;
+                        if (current != null) {
+                            refresh();
+                        }
+                    }
+                };
+            ContactsClient.resolver().registerContentObserver(
+                ContactsContract.Contacts.CONTENT_URI, true, observer);
+        }
+
+        if (!stale && (current != null)) {
+            return current;
+        }
+
+        // Clear the flag before we scan, so that a change that lands
+        // mid-scan marks the new index stale and queues another rebuild
+        // rather than being lost.
+        stale = false;
+
+        ArrayList<String> ids = new ArrayList<String>();
+        ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<String> keys = new ArrayList<String>();
+        ArrayList<Integer> owners = new ArrayList<Integer>();
+
+        Cursor cursor = Util.query(
+            ContactsContract.Contacts.CONTENT_URI,
+            new String[] {
+                ContactsContract.Contacts._ID,
+                ContactsContract.Contacts.DISPLAY_NAME
+            },
+            null, null, null, CallContext.NONE);
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(1);
+                if (name == null) {
+                    continue;
+                }
+
+                String normalized = normalize(name);
+                if (normalized.length() == 0) {
+                    continue;
+                }
+
+                int owner = ids.size();
+                ids.add(cursor.getString(0));
+                names.add(name);
+
+                for (int start = 0; start < normalized.length(); start++) {
+                    if ((start == 0) || (normalized.charAt(start - 1) == ' ')) {
+                        keys.add(normalized.substring(start));
+                        owners.add(owner);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Sort key positions rather than keys, so owners stays parallel.
+        Integer[] order = new Integer[keys.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return keys.get(a).compareTo(keys.get(b));
+                }
+            });
+
+        String[] sortedKeys = new String[order.length];
+        int[] sortedOwners = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedKeys[i] = keys.get(order[i]);
+            sortedOwners[i] = owners.get(order[i]);
+        }
+
+        current = new NameIndex(sortedKeys, sortedOwners,
+                                ids.toArray(new String[ids.size()]),
+                                names.toArray(new String[names.size()]));
+        return current;
+    }
+
+    /**
+     * Fold a name (or prefix) into the form we index: decomposed with
+     * the accents dropped, lower-cased, and with every run of
+     * non-alphanumerics turned into a single space.
+     *
+     * @param text Text to normalize
+     * @return The normalized text, with no leading or trailing spaces
+     */
+
+    static String normalize(String text) {
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFD)
+            .replaceAll("\\p{M}+", "")
+            .toLowerCase(Locale.ENGLISH);
+        StringBuilder out = new StringBuilder(folded.length());
+        boolean space = false;
+
+        for (int i = 0; i < folded.length(); i++) {
+            char c = folded.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && (out.length() > 0)) {
+                    out.append(' ');
+                }
+                out.append(c);
+                space = false;
+            } else {
+                space = true;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Find contacts with a name word starting with prefix.
+     *
+     * @param prefix Text the user has typed so far
+     * @param limit  Maximum number of contacts to return
+     * @return Array of { id, displayName } objects, in key order
+     */
+
+    public JsonArray lookup(String prefix, int limit) {
+        JsonArray results = new JsonArray();
+        String wanted = normalize(prefix);
+
+        if (wanted.length() == 0) {
+            return results;
+        }
+
+        // Find the first key >= wanted.  (Not Arrays.binarySearch, which
+        // may land anywhere in a run of equal keys.)
+        int idx = 0;
+        int end = this.keys.length;
+
+        while (idx < end) {
+            int mid = (idx + end) >>> 1;
+            if (this.keys[mid].compareTo(wanted) < 0) {
+                idx = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+
+        HashSet<Integer> seen = new HashSet<Integer>();
+
+        for (; (idx < this.keys.length) && (results.size() < limit); idx++) {
+            if (!this.keys[idx].startsWith(wanted)) {
+                break;
+            }
+
+            int owner = this.owners[idx];
+            if (!seen.add(owner)) {
+                continue;
+            }
+
+            JsonObject contact = new JsonObject();
+            contact.addProperty("id", this.ids[owner]);
+            contact.addProperty("displayName", this.names[owner]);
+            results.add(contact);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,201 @@
+package io.trigger.forge.android.modules.contact;
+
+import io.trigger.forge.android.core.ForgeApp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Answers "which of these phone numbers belong to a contact?" with a
+ * single scan of the phone rows in the Data table.
+ *
+ * Phone numbers are stored however the user typed them, so we can't just
+ * compare strings.  Instead we bucket every number in the address book
+ * by PhoneNumberUtils.toCallerIDMinMatch -- the last few digits, which
+ * is what the telephony stack itself uses to match callers -- and then
+ * confirm each candidate with an exact E.164 comparison (where both
+ * sides have one) or PhoneNumberUtils.compare, which copes with national
+ * versus international forms and trunk prefixes.  That's one pass over
+ * the book plus a hash lookup per input number, rather than comparing
+ * every input against every contact.
+ */
+
+class PhoneMatcher {
+    /**
+     * A phone number from the address book.
+     */
+
+    private static class Entry {
+        final String contactId;
+        final String number;
+        final String normalized;
+
+        Entry(String contactId, String number, String normalized) {
+            this.contactId = contactId;
+            this.number = number;
+            this.normalized = normalized;
+        }
+    }
+
+    private final HashMap<String, ArrayList<Entry>> buckets =
+        new HashMap<String, ArrayList<Entry>>();
+
+    private final String countryIso;
+
+    private PhoneMatcher(String countryIso) {
+        this.countryIso = countryIso;
+    }
+
+    /**
+     * Scan every phone number in the address book into a new matcher.
+     *
+     * @param ctx Context of the call we're working for
+     * @return The matcher
+     */
+
+    @SuppressLint("InlinedApi")
+    public static PhoneMatcher scan(CallContext ctx) {
+        PhoneMatcher matcher = new PhoneMatcher(countryIso());
+
+        // NORMALIZED_NUMBER (the E.164 form) only exists from API 16 on.
+        boolean haveNormalized = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+        String[] projection = haveNormalized
+            ? new String[] { Phone.CONTACT_ID, Phone.NUMBER, Phone.NORMALIZED_NUMBER }
+            : new String[] { Phone.CONTACT_ID, Phone.NUMBER };
+
+        Cursor cursor = Util.query(Phone.CONTENT_URI, projection,
+                                   null, null, null, ctx);
+        try {
+            while (cursor.moveToNext()) {
+                ctx.checkCancelled();
+
+                String number = cursor.getString(1);
+                if (number == null) {
+                    continue;
+                }
+
+                String key = PhoneNumberUtils.toCallerIDMinMatch(number);
+                if ((key == null) || (key.length() == 0)) {
+                    continue;
+                }
+
+                ArrayList<Entry> bucket = matcher.buckets.get(key);
+                if (bucket == null) {
+                    bucket = new ArrayList<Entry>(1);
+                    matcher.buckets.put(key, bucket);
+                }
+                bucket.add(new Entry(cursor.getString(0), number,
+                                     haveNormalized ? cursor.getString(2) : null));
+            }
+        } finally {
+            cursor.close();
+        }
+        return matcher;
+    }
+
+    /**
+     * Work out which country national-format numbers belong to, for
+     * E.164 conversion: the network's, failing that the SIM's, failing
+     * that the locale's.
+     *
+     * @return Upper-case ISO 3166 country code, or null if we can't tell
+     */
+
+    private static String countryIso() {
+        TelephonyManager telephony = (TelephonyManager)
+            ForgeApp.getActivity().getSystemService(Context.TELEPHONY_SERVICE);
+        String iso = null;
+
+        if (telephony != null) {
+            iso = telephony.getNetworkCountryIso();
+            if ((iso == null) || (iso.length() == 0)) {
+                iso = telephony.getSimCountryIso();
+            }
+        }
+        if ((iso == null) || (iso.length() == 0)) {
+            iso = Locale.getDefault().getCountry();
+        }
+        return ((iso == null) || (iso.length() == 0)) ? null : iso.toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Convert a number to E.164, if the platform can.
+     *
+     * @param number Number as given
+     * @return The E.164 form, or null
+     */
+
+    @SuppressLint("NewApi")
+    private String toE164(String number) {
+        if ((this.countryIso == null)
+            || (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)) {
+            return null;
+        }
+        return PhoneNumberUtils.formatNumberToE164(number, this.countryIso);
+    }
+
+    /**
+     * Find the contacts each of a list of numbers belongs to.
+     *
+     * @param numbers Phone numbers, in any format
+     * @return An object mapping each number that matched (exactly as
+     *         given) to an array of the IDs of contacts it belongs to;
+     *         numbers that matched nobody are left out
+     */
+
+    public JsonObject match(JsonArray numbers) {
+        JsonObject result = new JsonObject();
+
+        for (JsonElement element : numbers) {
+            if (!element.isJsonPrimitive()) {
+                continue;
+            }
+
+            String number = element.getAsString();
+            String key = PhoneNumberUtils.toCallerIDMinMatch(number);
+            ArrayList<Entry> bucket = (key == null) ? null : this.buckets.get(key);
+
+            if ((bucket == null) || result.has(number)) {
+                continue;
+            }
+
+            String e164 = toE164(number);
+            HashSet<String> seen = new HashSet<String>();
+            JsonArray ids = new JsonArray();
+
+            for (Entry entry : bucket) {
+                boolean same;
+
+                if ((e164 != null) && (entry.normalized != null)) {
+                    same = e164.equals(entry.normalized);
+                } else {
+                    same = PhoneNumberUtils.compare(number, entry.number);
+                }
+
+                if (same && seen.add(entry.contactId)) {
+                    ids.add(new JsonPrimitive(entry.contactId));
+                }
+            }
+
+            if (ids.size() > 0) {
+                result.add(number, ids);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,309 @@
+package io.trigger.forge.android.modules.contact;
+
+import io.trigger.forge.android.core.ForgeApp;
+import io.trigger.forge.android.core.ForgeLog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.Data;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Photo delivery by reference.
+ *
+ * Inline photos are base64 data: URLs, which costs roughly 2.7x the
+ * photo size in memory by the time it's been through a String and the
+ * JSON, and makes fetching photos for a whole address book a bad idea.
+ * When file mode is on, we instead write each photo once into the app's
+ * cache directory and hand back a file:// URL.
+ *
+ * Each contact gets a directory, and each photo a file in it named
+ * after the photo's Data row ID and the row's DATA_VERSION, which the
+ * provider bumps whenever the row changes.  So if the file is already
+ * there it's current.  When a photo changes, the new version gets a new
+ * file and we sweep the old ones out of the contact's directory -- just
+ * a file or two, rather than every photo we've ever written.
+ *
+ * In file mode the hydration query only fetches each photo row's ID and
+ * version (see Util.getProjection), so a photo we already have on disk
+ * costs nothing more.  Photos we don't have are collected in a Batch
+ * while the query runs, and their blobs fetched afterwards with one
+ * query per batch.
+ */
+
+class PhotoStore {
+    private static volatile boolean fileMode = false;
+
+    // The Batch for the hydration query running on this thread, if any.
+    private static final ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
+
+    /**
+     * @return true if photos should be delivered as file URLs
+     */
+
+    public static boolean isFileMode() {
+        return fileMode;
+    }
+
+    /**
+     * Choose between inline data: URLs (the default) and file URLs.
+     *
+     * @param enabled true for file URLs
+     */
+
+    public static void setFileMode(boolean enabled) {
+        fileMode = enabled;
+    }
+
+    private static File directory(String contactId) {
+        File dir = new File(new File(ForgeApp.getActivity().getCacheDir(), "contact-photos"),
+                            contactId);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            ForgeLog.w("couldn't create " + dir);
+        }
+        return dir;
+    }
+
+    private static File fileFor(File dir, long dataId, int version) {
+        return new File(dir, dataId + "-" + version + ".jpg");
+    }
+
+    /**
+     * Look for a photo we've already written.
+     *
+     * @param contactId ID of the contact the photo belongs to
+     * @param dataId    _ID of the photo's Data row
+     * @param version   DATA_VERSION of the photo's Data row
+     * @return A file:// URL, or null if we don't have that version
+     */
+
+    public static String cachedUrl(String contactId, long dataId, int version) {
+        File file = fileFor(directory(contactId), dataId, version);
+
+        return file.exists() ? Uri.fromFile(file).toString() : null;
+    }
+
+    /**
+     * Write a photo's file, if we haven't already.
+     *
+     * @param contactId ID of the contact the photo belongs to
+     * @param dataId    _ID of the photo's Data row
+     * @param version   DATA_VERSION of the photo's Data row
+     * @param photoData The row's photo
+     * @return A file:// URL, or null if we couldn't write it
+     */
+
+    public static String store(String contactId, long dataId, int version, byte[] photoData) {
+        String prefix = dataId + "-";
+        File dir = directory(contactId);
+        File file = fileFor(dir, dataId, version);
+
+        if (file.exists()) {
+            return Uri.fromFile(file).toString();
+        }
+
+        // Write to a temporary file and rename, so a concurrent reader
+        // never sees half a photo.  The name is unique, so two threads
+        // hydrating the same contact can't write over each other (and
+        // doesn't start with prefix, so the sweep leaves it alone).
+        File tmp = null;
+        FileOutputStream out = null;
+
+        try {
+            tmp = File.createTempFile("tmp-" + prefix, ".tmp", dir);
+            out = new FileOutputStream(tmp);
+            out.write(photoData);
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file) && !file.exists()) {
+                ForgeLog.w("couldn't rename " + tmp + " to " + file);
+                tmp.delete();
+                return null;
+            }
+            tmp.delete();
+        } catch (IOException e) {
+            ForgeLog.w("couldn't write photo " + file + ": " + e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return null;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        // Sweep out older versions of the same photo.
+        File[] siblings = dir.listFiles();
+
+        if (siblings != null) {
+            for (File sibling : siblings) {
+                if (sibling.getName().startsWith(prefix) && !sibling.equals(file)) {
+                    sibling.delete();
+                }
+            }
+        }
+
+        return Uri.fromFile(file).toString();
+    }
+
+    /**
+     * Start collecting the photos a hydration query on this thread
+     * finds no file for.  Always end() it, in a finally block, and
+     * resolve() it once the query's done.
+     *
+     * @return The new batch
+     */
+
+    public static Batch beginBatch() {
+        Batch batch = new Batch();
+        batches.set(batch);
+        return batch;
+    }
+
+    /**
+     * Fill in a photo we have no file for: later, if this thread is
+     * collecting a Batch, or straight away with a query of its own if
+     * it isn't.
+     *
+     * @param contact   The contact to add the photo to
+     * @param contactId ID of the contact the photo belongs to
+     * @param dataId    _ID of the photo's Data row
+     * @param version   DATA_VERSION of the photo's Data row
+     */
+
+    public static void defer(JsonObject contact, String contactId, long dataId, int version) {
+        Batch batch = batches.get();
+
+        if (batch != null) {
+            batch.add(contact, contactId, dataId, version);
+            return;
+        }
+
+        batch = new Batch();
+        batch.add(contact, contactId, dataId, version);
+        batch.resolve(CallContext.NONE);
+    }
+
+    /**
+     * Photos waiting for their blobs.
+     */
+
+    static class Batch {
+        private final HashMap<Long, ArrayList<Pending>> pending =
+            new HashMap<Long, ArrayList<Pending>>();
+        private int size = 0;
+
+        private static class Pending {
+            final JsonObject contact;
+            final String contactId;
+            final int version;
+
+            Pending(JsonObject contact, String contactId, int version) {
+                this.contact = contact;
+                this.contactId = contactId;
+                this.version = version;
+            }
+        }
+
+        void add(JsonObject contact, String contactId, long dataId, int version) {
+            ArrayList<Pending> waiting = pending.get(dataId);
+
+            if (waiting == null) {
+                waiting = new ArrayList<Pending>(1);
+                pending.put(dataId, waiting);
+            }
+            waiting.add(new Pending(contact, contactId, version));
+            size++;
+        }
+
+        /**
+         * @return The number of photos waiting
+         */
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Fetch the blobs for every photo waiting, write their files and
+         * add them to their contacts.  A photo we can't write is
+         * returned inline instead.
+         *
+         * @param ctx Context of the call we're working for
+         */
+
+        public void resolve(CallContext ctx) {
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            ArrayList<Long> dataIds = new ArrayList<Long>(pending.keySet());
+
+            for (int start = 0; start < dataIds.size(); start += Util.MAX_BOUND_ARGS) {
+                List<Long> chunk = dataIds.subList(
+                    start, Math.min(start + Util.MAX_BOUND_ARGS, dataIds.size()));
+                String[] args = new String[chunk.size()];
+
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = String.valueOf(chunk.get(i));
+                }
+
+                Cursor cursor = Util.query(Data.CONTENT_URI,
+                                           new String[] { Data._ID, Photo.PHOTO },
+                                           Util.inClause(Data._ID, args.length),
+                                           args, null, ctx);
+                try {
+                    while (cursor.moveToNext()) {
+                        ctx.checkCancelled();
+                        long dataId = cursor.getLong(0);
+                        byte[] photoData = cursor.isNull(1) ? null : cursor.getBlob(1);
+                        ArrayList<Pending> waiting = pending.get(dataId);
+
+                        if ((waiting == null) || (photoData == null)) {
+                            continue;
+                        }
+                        for (Pending photo : waiting) {
+                            String url = store(photo.contactId, dataId, photo.version, photoData);
+                            if (url != null) {
+                                Util.addPhoto(photo.contact, url);
+                            } else {
+                                Util.addPhoto(photo.contact, Util.inlinePhotoUrl(photoData));
+                            }
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            pending.clear();
+            size = 0;
+        }
+
+        /**
+         * Stop collecting on this thread.  Photos already collected are
+         * kept for resolve().
+         */
+
+        public void end() {
+            if (batches.get() == this) {
+                batches.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package io.trigger.forge.android.modules.contact;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import android.provider.ContactsContract;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Everything needed to query and decode the Data table for a given set
+ * of high-level fields (and photo mode): projection, mime-type
+ * arguments, selection templates and a RowDecoder.
+ *
+ * Building all that means walking the field list a couple of times and
+ * scanning the projection for every column we know about, and apps tend
+ * to ask for the same handful of field sets over and over.  So plans
+ * are immutable, keyed by the normalized (sorted, de-duplicated, unknown
+ * names dropped) field set plus the photo mode, and cached forever --
+ * there are only 2^12 possible keys, and in practice there are two or
+ * three.
+ */
+
+class QueryPlan {
+    private static final HashMap<String, QueryPlan> plans =
+        new HashMap<String, QueryPlan>();
+
+    private static final Set<String> knownFields = new HashSet<String>();
+
+    static {
+        for (JsonElement field : Util.allFields) {
+            knownFields.add(field.getAsString());
+        }
+    }
+
+    /** Normalized field set and photo mode, e.g. "emails,photos|file" */
+    public final String key;
+
+    /** Columns to ask the Data table for */
+    public final String[] projection;
+
+    /** Mime types for the requested fields, in selection-argument order */
+    public final String[] mimeTypes;
+
+    /** The same mime types, for per-row membership tests */
+    public final Set<String> mimeTypeSet;
+
+    /**
+     * "MIMETYPE IN (?,...)", or null if there are no mime types to
+     * restrict to
+     */
+    public final String mimeTypeSelection;
+
+    /** Selection for a single contact; bind with byIdArgs */
+    public final String byIdSelection;
+
+    /** Decoder for cursors queried with projection */
+    public final RowDecoder decoder;
+
+    private QueryPlan(String key, JsonArray fields, boolean photoFiles) {
+        this.key = key;
+        this.projection = Util.getProjection(fields, photoFiles);
+        this.mimeTypes = Util.getMimeTypes(fields);
+        this.mimeTypeSet = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList(this.mimeTypes)));
+
+        if (this.mimeTypes.length > 0) {
+            this.mimeTypeSelection =
+                Util.inClause(ContactsContract.Data.MIMETYPE,
+                              this.mimeTypes.length);
+            this.byIdSelection = ContactsContract.Data.CONTACT_ID + " = ? AND "
+                + this.mimeTypeSelection;
+        } else {
+            this.mimeTypeSelection = null;
+            this.byIdSelection = ContactsContract.Data.CONTACT_ID + " = ?";
+        }
+
+        this.decoder = new RowDecoder(this.projection);
+    }
+
+    /**
+     * Get the plan for a set of fields, building it if we've never seen
+     * this set before.
+     *
+     * @param fields high-level field names, or null for everything
+     */
+
+    public static QueryPlan forFields(JsonArray fields) {
+        if (fields == null) {
+            fields = Util.allFields;
+        }
+
+        TreeSet<String> normalized = new TreeSet<String>();
+
+        for (JsonElement field : fields) {
+            String name = field.getAsString();
+            if (knownFields.contains(name)) {
+                normalized.add(name);
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+
+        for (String name : normalized) {
+            if (key.length() > 0) {
+                key.append(',');
+            }
+            key.append(name);
+        }
+
+        // The photo mode only matters if we're fetching photos.
+        boolean photoFiles = normalized.contains("photos") && PhotoStore.isFileMode();
+
+        if (photoFiles) {
+            key.append("|file");
+        }
+
+        synchronized (plans) {
+            QueryPlan plan = plans.get(key.toString());
+
+            if (plan == null) {
+                JsonArray planFields = new JsonArray();
+                for (String name : normalized) {
+                    planFields.add(new JsonPrimitive(name));
+                }
+                plan = new QueryPlan(key.toString(), planFields, photoFiles);
+                plans.put(plan.key, plan);
+            }
+            return plan;
+        }
+    }
+
+    /**
+     * Selection arguments to go with byIdSelection.
+     *
+     * @param contactId ID of the contact to fetch
+     */
+
+    public String[] byIdArgs(String contactId) {
+        String[] args = new String[this.mimeTypes.length + 1];
+
+        args[0] = contactId;
+        System.arraycopy(this.mimeTypes, 0, args, 1, this.mimeTypes.length);
+        return args;
+    }
+}
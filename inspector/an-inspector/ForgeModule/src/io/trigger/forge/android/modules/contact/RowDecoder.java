@@ -0,0 +1,207 @@
+package io.trigger.forge.android.modules.contact;
+
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Event;
+import android.provider.ContactsContract.CommonDataKinds.Im;
+import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Note;
+import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.CommonDataKinds.Website;
+import android.provider.ContactsContract.Data;
+
+/**
+ * A RowDecoder knows where every column Util.contactToJSON cares about
+ * lives in a given projection.  Build one per query (not per row!) and
+ * hand it to contactToJSON for each row of the cursor.
+ *
+ * Columns that aren't in the projection get index -1, and the typed
+ * accessors treat them exactly like SQL NULLs: getString returns null
+ * and getInt returns -1.  That's what lets contactToJSON get away
+ * without any per-row lookups or exception handling.
+ *
+ * Bear in mind that many of the CommonDataKinds constants are aliases
+ * for the same generic column (Phone.NUMBER and Email.DATA are both
+ * "data1", for example), so several of these indexes will usually be
+ * the same.  That's fine, since any given row only has one mime type.
+ */
+
+class RowDecoder {
+    public final int dataId;
+    public final int contactId;
+    public final int displayName;
+    public final int mimeType;
+
+    public final int nickname;
+    public final int note;
+
+    public final int eventStartDate;
+    public final int eventType;
+
+    public final int nameFamily;
+    public final int nameFormatted;
+    public final int nameGiven;
+    public final int namePrefix;
+    public final int nameSuffix;
+    public final int nameMiddle;
+
+    public final int emailValue;
+    public final int emailType;
+    public final int emailLabel;
+
+    public final int phoneNumber;
+    public final int phoneType;
+    public final int phoneLabel;
+
+    public final int postalFormatted;
+    public final int postalType;
+    public final int postalLabel;
+    public final int postalCountry;
+    public final int postalCity;
+    public final int postalPostcode;
+    public final int postalRegion;
+    public final int postalStreet;
+
+    public final int imValue;
+    public final int imProtocol;
+    public final int imCustomProtocol;
+
+    public final int urlValue;
+    public final int urlType;
+    public final int urlLabel;
+
+    public final int orgCompany;
+    public final int orgDepartment;
+    public final int orgTitle;
+    public final int orgType;
+    public final int orgLabel;
+
+    public final int photo;
+    public final int dataVersion;
+
+    /**
+     * Resolve every column we know about against a projection.
+     *
+     * @param projection The projection the cursor was queried with
+     */
+
+    public RowDecoder(String[] projection) {
+        dataId = indexOf(projection, Data._ID);
+        contactId = indexOf(projection, Data.CONTACT_ID);
+        displayName = indexOf(projection, Data.DISPLAY_NAME);
+        mimeType = indexOf(projection, Data.MIMETYPE);
+
+        nickname = indexOf(projection, Nickname.NAME);
+        note = indexOf(projection, Note.NOTE);
+
+        eventStartDate = indexOf(projection, Event.START_DATE);
+        eventType = indexOf(projection, Event.TYPE);
+
+        nameFamily = indexOf(projection, StructuredName.FAMILY_NAME);
+        nameFormatted = indexOf(projection, StructuredName.DISPLAY_NAME);
+        nameGiven = indexOf(projection, StructuredName.GIVEN_NAME);
+        namePrefix = indexOf(projection, StructuredName.PREFIX);
+        nameSuffix = indexOf(projection, StructuredName.SUFFIX);
+        nameMiddle = indexOf(projection, StructuredName.MIDDLE_NAME);
+
+        emailValue = indexOf(projection, Email.DATA1);
+        emailType = indexOf(projection, Email.TYPE);
+        emailLabel = indexOf(projection, Email.LABEL);
+
+        phoneNumber = indexOf(projection, Phone.NUMBER);
+        phoneType = indexOf(projection, Phone.TYPE);
+        phoneLabel = indexOf(projection, Phone.LABEL);
+
+        postalFormatted = indexOf(projection, StructuredPostal.FORMATTED_ADDRESS);
+        postalType = indexOf(projection, StructuredPostal.TYPE);
+        postalLabel = indexOf(projection, StructuredPostal.LABEL);
+        postalCountry = indexOf(projection, StructuredPostal.COUNTRY);
+        postalCity = indexOf(projection, StructuredPostal.CITY);
+        postalPostcode = indexOf(projection, StructuredPostal.POSTCODE);
+        postalRegion = indexOf(projection, StructuredPostal.REGION);
+        postalStreet = indexOf(projection, StructuredPostal.STREET);
+
+        imValue = indexOf(projection, Im.DATA);
+        imProtocol = indexOf(projection, Im.PROTOCOL);
+        imCustomProtocol = indexOf(projection, Im.CUSTOM_PROTOCOL);
+
+        urlValue = indexOf(projection, Website.URL);
+        urlType = indexOf(projection, Website.TYPE);
+        urlLabel = indexOf(projection, Website.LABEL);
+
+        orgCompany = indexOf(projection, Organization.COMPANY);
+        orgDepartment = indexOf(projection, Organization.DEPARTMENT);
+        orgTitle = indexOf(projection, Organization.TITLE);
+        orgType = indexOf(projection, Organization.TYPE);
+        orgLabel = indexOf(projection, Organization.LABEL);
+
+        photo = indexOf(projection, Photo.PHOTO);
+        dataVersion = indexOf(projection, Data.DATA_VERSION);
+    }
+
+    /**
+     * Find a column in a projection.
+     *
+     * @param projection Projection to search
+     * @param column     Column name to look for
+     * @return The index of the first occurrence, or -1 if it's not there
+     */
+
+    private static int indexOf(String[] projection, String column) {
+        for (int idx = 0; idx < projection.length; idx++) {
+            if (projection[idx].equals(column)) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Fetch a String from the current row.
+     *
+     * @param cursor Cursor positioned on the row to read
+     * @param column Index from one of our fields
+     * @return The value, or null if the column is missing or NULL
+     */
+
+    public String getString(Cursor cursor, int column) {
+        if ((column < 0) || cursor.isNull(column)) {
+            return null;
+        }
+        return cursor.getString(column);
+    }
+
+    /**
+     * Fetch an int from the current row.
+     *
+     * @param cursor Cursor positioned on the row to read
+     * @param column Index from one of our fields
+     * @return The value, or -1 if the column is missing or NULL
+     */
+
+    public int getInt(Cursor cursor, int column) {
+        if ((column < 0) || cursor.isNull(column)) {
+            return -1;
+        }
+        return cursor.getInt(column);
+    }
+
+    /**
+     * Fetch a blob from the current row.
+     *
+     * @param cursor Cursor positioned on the row to read
+     * @param column Index from one of our fields
+     * @return The value, or null if the column is missing or NULL
+     */
+
+    public byte[] getBlob(Cursor cursor, int column) {
+        if ((column < 0) || cursor.isNull(column)) {
+            return null;
+        }
+        return cursor.getBlob(column);
+    }
+}
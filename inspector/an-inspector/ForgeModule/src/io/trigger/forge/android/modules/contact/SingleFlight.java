@@ -0,0 +1,231 @@
+package io.trigger.forge.android.modules.contact;
+
+import io.trigger.forge.android.core.ForgeTask;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Coalesces identical reads that are in flight at the same time.
+ *
+ * Screens tend to ask for the same thing at the same moment (every one
+ * of them calls selectAll on startup, say).  Rather than scan the
+ * provider once per caller, the first call with a given key starts a
+ * flight and queues the work; calls with the same key that arrive
+ * before it finishes just join it, and every task gets the same answer.
+ * The key is the method plus everything that affects its result --
+ * never the cancellation handle, which is unique to each call.
+ *
+ * A SingleFlight stands in for the ForgeTask in the code that does the
+ * work: success() and error() report to every task aboard.  Results
+ * are shared, so nothing may modify them afterwards (the same rule
+ * ContactCache already imposes on hydrated contacts).
+ *
+ * Cancelling one task's handle only drops that task; the query itself
+ * is cancelled once nobody is left waiting for it.  And so that a read
+ * never sees the address book as it was before one of our own writes,
+ * queueing a write stops every flight in progress from taking on new
+ * passengers, and flights started while a write is queued or running
+ * never take any (see land() and resume()): their query may have run
+ * before the write, and a read made after the write has reported back
+ * mustn't be given its result.
+ */
+
+class SingleFlight {
+    // Flights that can still be joined, by key.
+    private static final HashMap<String, SingleFlight> boarding =
+        new HashMap<String, SingleFlight>();
+
+    // Flights by the handles of the tasks aboard, for cancel().
+    private static final HashMap<String, SingleFlight> byHandle =
+        new HashMap<String, SingleFlight>();
+
+    // Writes queued or running; while there are any, nobody boards.
+    private static int writing = 0;
+
+    private final String key;
+    private final ArrayList<ForgeTask> tasks = new ArrayList<ForgeTask>();
+    private final ArrayList<String> handles = new ArrayList<String>();
+    private CallContext ctx = null;
+    private boolean abandoned = false;
+
+    private SingleFlight(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Join the flight for a key, starting one if there isn't one.
+     *
+     * @param name   API method, for ContactStats
+     * @param key    Method and arguments that identify the result
+     * @param task   The caller's task
+     * @param handle Handle contact.cancel may drop the task by, or
+     *               null/empty
+     * @return A new flight, whose work the caller must now queue; or
+     *         null if the task joined a flight that's already on its way
+     */
+
+    public static SingleFlight join(String name, String key, ForgeTask task, String handle) {
+        synchronized (boarding) {
+            SingleFlight flight = boarding.get(key);
+            boolean joined = (flight != null);
+
+            if (!joined) {
+                flight = new SingleFlight(key);
+                if (writing == 0) {
+                    boarding.put(key, flight);
+                }
+            }
+
+            flight.tasks.add(task);
+            flight.handles.add(handle);
+            if ((handle != null) && (handle.length() > 0)) {
+                byHandle.put(handle, flight);
+            }
+
+            if (joined) {
+                ContactStats.begin(name + "Joined").end();
+                return null;
+            }
+            return flight;
+        }
+    }
+
+    /**
+     * A write has been queued: close every flight in progress to new
+     * passengers, and keep flights closed until the write calls
+     * resume().  Reads that arrive meanwhile start flights of their own.
+     */
+
+    public static void land() {
+        synchronized (boarding) {
+            writing++;
+            boarding.clear();
+        }
+    }
+
+    /**
+     * A write queued with land() has finished (and reported back).
+     * Once no writes are left, new flights may take passengers again.
+     */
+
+    public static void resume() {
+        synchronized (boarding) {
+            writing--;
+        }
+    }
+
+    /**
+     * Drop the task waiting under a handle from its flight, and cancel
+     * the flight's query if that was the last task aboard.
+     *
+     * @param handle Handle passed to join()
+     * @return true if there was such a task still waiting
+     */
+
+    public static boolean cancel(String handle) {
+        ForgeTask task;
+        CallContext cancel = null;
+
+        synchronized (boarding) {
+            SingleFlight flight = byHandle.remove(handle);
+            if (flight == null) {
+                return false;
+            }
+
+            int idx = flight.handles.indexOf(handle);
+            task = flight.tasks.remove(idx);
+            flight.handles.remove(idx);
+
+            if (flight.tasks.isEmpty()) {
+                flight.abandoned = true;
+                if (boarding.get(flight.key) == flight) {
+                    boarding.remove(flight.key);
+                }
+                cancel = flight.ctx;
+            }
+        }
+
+        if (cancel != null) {
+            cancel.cancel("Contact query cancelled");
+        }
+        task.error("Contact query cancelled", "EXPECTED_FAILURE", null);
+        return true;
+    }
+
+    /**
+     * Open the CallContext for the flight's query, when its job is
+     * queued.  It has no handle of its own (see cancel()); always pair
+     * this with close().
+     *
+     * @param timeoutMs Milliseconds before we give up, or 0 for never
+     * @return The new context, already cancelled if everyone has left
+     */
+
+    public CallContext open(long timeoutMs) {
+        CallContext opened = CallContext.open(null, timeoutMs);
+        boolean abandoned;
+
+        synchronized (boarding) {
+            this.ctx = opened;
+            abandoned = this.abandoned;
+        }
+
+        if (abandoned) {
+            opened.cancel("Contact query cancelled");
+        }
+        return opened;
+    }
+
+    /**
+     * Take every task off the flight, and stop any more joining it.
+     *
+     * @return The tasks that were aboard
+     */
+
+    private ArrayList<ForgeTask> finish() {
+        synchronized (boarding) {
+            if (boarding.get(this.key) == this) {
+                boarding.remove(this.key);
+            }
+            for (String handle : this.handles) {
+                if ((handle != null) && (byHandle.get(handle) == this)) {
+                    byHandle.remove(handle);
+                }
+            }
+
+            ArrayList<ForgeTask> aboard = new ArrayList<ForgeTask>(this.tasks);
+            this.tasks.clear();
+            this.handles.clear();
+            return aboard;
+        }
+    }
+
+    /**
+     * Report a result to every task aboard.
+     *
+     * @param result The result, which they all share
+     */
+
+    public void success(JsonElement result) {
+        for (ForgeTask task : finish()) {
+            task.success(result);
+        }
+    }
+
+    /**
+     * Report a failure to every task aboard.
+     *
+     * @param message What went wrong
+     * @param type    Forge error type, e.g. "EXPECTED_FAILURE"
+     * @param subtype Forge error subtype, or null
+     */
+
+    public void error(String message, String type, String subtype) {
+        for (ForgeTask task : finish()) {
+            task.error(message, type, subtype);
+        }
+    }
+}
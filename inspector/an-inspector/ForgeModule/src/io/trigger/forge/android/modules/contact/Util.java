@@ -1,15 +1,22 @@
 package io.trigger.forge.android.modules.contact;
 
-import io.trigger.forge.android.core.ForgeApp;
 import io.trigger.forge.android.core.ForgeLog;
+
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.Set;
 
 import android.content.ContentProviderOperation;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.BaseTypes;
 import android.provider.ContactsContract.CommonDataKinds.Email;
@@ -27,12 +34,13 @@ import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
 import android.util.Base64;
 
-import com.google.common.base.Joiner;
+import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * When adding contacts, we need to convert from W3C Contact objects into
@@ -61,6 +69,25 @@ interface JSONConverter {
                         int backRef, JsonObject obj);
 }
 
+/**
+ * Reading contacts is the mirror image: every Data row has a MIME type,
+ * and a FieldHandler folds a row of its type into the contact being
+ * built.  Util keeps a map from MIME type to handler, so contactToJSON
+ * costs one hash lookup per row however many types we know about.
+ */
+
+interface FieldHandler {
+    /**
+     * Fold one Data row into a contact.
+     *
+     * @param cursor  Data cursor positioned on a row of our MIME type
+     * @param decoder Column positions for the cursor's projection
+     * @param contact The contact to add the row's data to
+     */
+
+    public void decode(Cursor cursor, RowDecoder decoder, JsonObject contact);
+}
+
 /**
  * InsertOperation is basically a ContentProviderOperation.Builder, but 
  * it keeps track of the JsonObject it's meant to be referencing, and it
@@ -271,7 +298,264 @@ class InsertOperation {
     }
 }    
 
+/**
+ * Receives contacts one at a time as they're assembled, so that callers
+ * of Util.streamContacts don't need to hold the whole address book in a
+ * map before doing anything with it.
+ */
+
+interface ContactSink {
+    /**
+     * Called once per contact, after every row for that contact has been
+     * folded in.
+     *
+     * @param contact The fully-populated contact
+     */
+
+    public void emit(JsonObject contact);
+}
+
+/**
+ * A ContactSink that serializes each contact into a JSON array as soon as
+ * it arrives, so we never hold a JsonArray of the whole address book --
+ * just the contact being built and the output text.
+ */
+
+class JsonArraySink implements ContactSink {
+    private final Gson gson = new Gson();
+    private final StringWriter out = new StringWriter();
+    private final JsonWriter writer = new JsonWriter(out);
+    private int count = 0;
+
+    public JsonArraySink() {
+        try {
+            writer.beginArray();
+        } catch (IOException e) {
+            // StringWriter doesn't throw.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void emit(JsonObject contact) {
+        gson.toJson(contact, writer);
+        count++;
+    }
+
+    /**
+     * @return The number of contacts written so far
+     */
+
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Close the array off.  Don't emit anything after calling this.
+     *
+     * @return The serialized JSON array
+     */
+
+    public String finish() {
+        try {
+            writer.endArray();
+            writer.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+}
+
+/**
+ * A ContactSink that files each contact's properties into parallel
+ * arrays, one per property, rather than keeping an object per contact:
+ *
+ *     { "ids": [ "1", "2" ], "displayName": [ "Ann", "Bob" ],
+ *       "emails": [ [ ... ], null ] }
+ *
+ * Entry i of every array belongs to the contact whose ID is ids[i];
+ * properties a contact doesn't have are null.  That way the property
+ * names are sent once rather than once per contact.
+ */
+
+class ColumnarSink implements ContactSink {
+    private final JsonObject columns = new JsonObject();
+    private final JsonArray ids = new JsonArray();
+    private final JsonArray names = new JsonArray();
+    private final String[] fields;
+    private final JsonArray[] values;
+
+    /**
+     * @param fields high-level fields to make columns for (besides ids
+     *               and displayName), or null for none
+     */
+
+    public ColumnarSink(JsonArray fields) {
+        int count = (fields == null) ? 0 : fields.size();
+
+        this.fields = new String[count];
+        this.values = new JsonArray[count];
+
+        columns.add("ids", ids);
+        columns.add("displayName", names);
+        for (int i = 0; i < count; i++) {
+            this.fields[i] = fields.get(i).getAsString();
+            this.values[i] = new JsonArray();
+            columns.add(this.fields[i], this.values[i]);
+        }
+    }
+
+    /**
+     * Add a contact that only has an ID and a name, without building
+     * an object for it.
+     *
+     * @param id          contact ID
+     * @param displayName display name (may be null)
+     */
+
+    public void add(String id, String displayName) {
+        ids.add(new JsonPrimitive(id));
+        names.add((displayName == null) ? JsonNull.INSTANCE : new JsonPrimitive(displayName));
+        for (JsonArray column : values) {
+            column.add(JsonNull.INSTANCE);
+        }
+    }
+
+    public void emit(JsonObject contact) {
+        ids.add(contact.get("id"));
+        names.add(orNull(contact.get("displayName")));
+        for (int i = 0; i < fields.length; i++) {
+            values[i].add(orNull(contact.get(fields[i])));
+        }
+    }
+
+    private static JsonElement orNull(JsonElement value) {
+        return (value == null) ? JsonNull.INSTANCE : value;
+    }
+
+    /**
+     * @return The number of contacts added so far
+     */
+
+    public int count() {
+        return ids.size();
+    }
+
+    /**
+     * @return The columns
+     */
+
+    public JsonObject finish() {
+        return columns;
+    }
+}
+
+/**
+ * Wraps every cursor Util.query hands out, to count the rows read for
+ * ContactStats.  Callers read rows in order (or just the first), so the
+ * position we're left at when the cursor is closed tells us how many
+ * were read without counting each one.
+ */
+
+class CountingCursor extends CursorWrapper {
+    public CountingCursor(Cursor cursor) {
+        super(cursor);
+    }
+
+    @Override
+    public void close() {
+        if (!isClosed()) {
+            int read = Math.min(getPosition() + 1, getCount());
+            ContactStats.rows(Math.max(read, 0));
+        }
+        super.close();
+    }
+}
+
 class Util {
+    // Upper bound on bound arguments in one statement
+    // (SQLITE_MAX_VARIABLE_NUMBER on older devices).
+    static final int MAX_BOUND_ARGS = 999;
+
+    // In file mode, how many photos streamContacts lets pile up before
+    // fetching them (see PhotoStore.Batch).
+    private static final int STREAM_PHOTO_BATCH = 100;
+
+    // Contact IDs per Data query in populateContacts; see
+    // setHydrationChunkSize.
+    private static int hydrationChunkSize = 500;
+
+    // Whether hydrate may spread its chunks over several threads; see
+    // setParallelHydration.
+    private static volatile boolean parallelHydration = false;
+
+    // MIME type -> FieldHandler for contactToJSON, one per built-in
+    // field type.  Never changed once built, so lookups don't need a
+    // lock.
+    private static final Map<String, FieldHandler> fieldHandlers;
+
+    static {
+        HashMap<String, FieldHandler> handlers = new HashMap<String, FieldHandler>();
+
+        handlers.put(Nickname.CONTENT_ITEM_TYPE, new FieldHandler() {
+                public void decode(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+                    decodeNickname(cursor, decoder, contact);
+                }
+            });
+        handlers.put(Note.CONTENT_ITEM_TYPE, new FieldHandler() {
+                public void decode(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+                    decodeNote(cursor, decoder, contact);
+                }
+            });
+        handlers.put(Event.CONTENT_ITEM_TYPE, new FieldHandler() {
+                public void decode(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+                    decodeEvent(cursor, decoder, contact);
+                }
+            });
+        handlers.put(StructuredName.CONTENT_ITEM_TYPE, new FieldHandler() {
+                public void decode(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+                    decodeName(cursor, decoder, contact);
+                }
+            });
+        handlers.put(Email.CONTENT_ITEM_TYPE, new FieldHandler() {
+                public void decode(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+                    decodeEmail(cursor, decoder, contact);
+                }
+            });
+        handlers.put(Phone.CONTENT_ITEM_TYPE, new FieldHandler() {
+                public void decode(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+                    decodePhone(cursor, decoder, contact);
+                }
+            });
+        handlers.put(StructuredPostal.CONTENT_ITEM_TYPE, new FieldHandler() {
+                public void decode(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+                    decodeAddress(cursor, decoder, contact);
+                }
+            });
+        handlers.put(Im.CONTENT_ITEM_TYPE, new FieldHandler() {
+                public void decode(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+                    decodeIm(cursor, decoder, contact);
+                }
+            });
+        handlers.put(Website.CONTENT_ITEM_TYPE, new FieldHandler() {
+                public void decode(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+                    decodeUrl(cursor, decoder, contact);
+                }
+            });
+        handlers.put(Organization.CONTENT_ITEM_TYPE, new FieldHandler() {
+                public void decode(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+                    decodeOrganization(cursor, decoder, contact);
+                }
+            });
+        handlers.put(Photo.CONTENT_ITEM_TYPE, new FieldHandler() {
+                public void decode(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+                    decodePhoto(cursor, decoder, contact);
+                }
+            });
+
+        fieldHandlers = Collections.unmodifiableMap(handlers);
+    }
+
     public static JsonArray allFields = new JsonArray();
     public static JsonArray allFieldsForAdd = new JsonArray();
     public static HashMap<String, Integer> typeMapOrganization =
@@ -378,10 +662,13 @@ class Util {
     /**
      * Returns an array of Strings which can be used to limit the columns returned by the data provider.
      * 
+     * Callers should normally go through QueryPlan.forFields, which caches the result.
+     * 
      * @param fields the high-level field names we need data for: possible values are in the allFields array.
+     * @param photoFiles if true, fetch the photo row's version instead of the photo itself (see PhotoStore)
      */
-    private static String[] getProjection(final JsonArray fields) {
-        Vector<String> projection = new Vector<String>();
+    static String[] getProjection(final JsonArray fields, final boolean photoFiles) {
+        ArrayList<String> projection = new ArrayList<String>();
 		
         // Columns which must be included for internal uses
         projection.add(ContactsContract.Contacts._ID);
@@ -434,7 +721,11 @@ class Util {
             } else if (field.equals("note")) {
                 projection.add(ContactsContract.CommonDataKinds.Note.NOTE);
             } else if (field.equals("photos")) {
-                projection.add(ContactsContract.CommonDataKinds.Photo.PHOTO);
+                if (photoFiles) {
+                    projection.add(ContactsContract.Data.DATA_VERSION);
+                } else {
+                    projection.add(ContactsContract.CommonDataKinds.Photo.PHOTO);
+                }
             } else if (field.equals("urls")) {
                 projection.add(ContactsContract.CommonDataKinds.Website.URL);
                 projection.add(ContactsContract.CommonDataKinds.Website.TYPE);
@@ -448,10 +739,12 @@ class Util {
     /**
      * Return the mime-types which correspond to the fields passed in as an argument.
      * 
+     * Callers should normally go through QueryPlan.forFields, which caches the result.
+     * 
      * @param fields the high-level field names to return mime-types for; valid values are in allFields.
      */
-    private static String[] getMimeTypes(final JsonArray fields) {
-        Vector<String> mimeTypes = new Vector<String>();
+    static String[] getMimeTypes(final JsonArray fields) {
+        ArrayList<String> mimeTypes = new ArrayList<String>();
 		
         for (JsonElement jsonField : fields) {
             String field = jsonField.getAsString();
@@ -483,52 +776,114 @@ class Util {
         return mimeTypes.toArray(new String[mimeTypes.size()]);
     }
 
+    private static void 
+    addIfPresent(JsonObject obj, String fieldName, 
+                 Cursor cursor, int column) {
+        if ((column < 0) || cursor.isNull(column)) {
+            return;
+        }
+
+        String value = cursor.getString(column);
+
+        if (value.length() > 0) {
+            obj.addProperty(fieldName, value);
+        }
+    }
+	
     /**
-     * Return the column index, given its name
-     * 
-     * @param name column name
-     * @param columnMemo mapping of name to index
-     * @return integer column index
+     * Read a boolean option from an options object passed in from JS.
+     *
+     * @param options      options object (may be null)
+     * @param name         option name
+     * @param defaultValue value to use if the option is missing or null
      */
-    private static int getColumnIndex(String name, Map<String, Integer> columnMemo) {
-        return columnMemo.get(name); 
+    public static boolean optBoolean(JsonObject options, String name,
+                                     boolean defaultValue) {
+        if (options == null) {
+            return defaultValue;
+        }
+        JsonElement value = options.get(name);
+        if ((value == null) || value.isJsonNull()) {
+            return defaultValue;
+        }
+        return value.getAsBoolean();
     }
-	
+
     /**
-     * Return the value of the named column, at the current row
-     * @param cursor database cursor into provider results
-     * @param name
-     * @param columnMemo
-     * @return specified value, or an empty string if not found 
+     * Read a string option from an options object passed in from JS.
+     *
+     * @param options      options object (may be null)
+     * @param name         option name
+     * @param defaultValue value to use if the option is missing or null
      */
-    private static String getValue(Cursor cursor, String name, Map<String, Integer> columnMemo) {
-        try {
-            return cursor.getString(getColumnIndex(name, columnMemo));
-        } catch (Exception e) {
-            return "";
+    public static String optString(JsonObject options, String name,
+                                   String defaultValue) {
+        if (options == null) {
+            return defaultValue;
+        }
+        JsonElement value = options.get(name);
+        if ((value == null) || value.isJsonNull()) {
+            return defaultValue;
         }
+        return value.getAsString();
     }
-	
-    private static int getValueOrMinusOne(Cursor cursor, String name, Map<String, Integer> columnMemo) {
-        String value = getValue(cursor, name, columnMemo);
-        if ("" == value) {
-            return -1;
-        } else {
-            return Integer.parseInt(value); 
+
+    /**
+     * Read a numeric option from an options object passed in from JS.
+     *
+     * @param options      options object (may be null)
+     * @param name         option name
+     * @param defaultValue value to use if the option is missing or null
+     */
+    public static long optLong(JsonObject options, String name,
+                               long defaultValue) {
+        if (options == null) {
+            return defaultValue;
         }
+        JsonElement value = options.get(name);
+        if ((value == null) || value.isJsonNull()) {
+            return defaultValue;
+        }
+        return value.getAsLong();
     }
 
-    private static void 
-    addIfPresent(JsonObject obj, String fieldName, 
-                 Cursor cursor, Map<String, Integer> columnMemo,
-                 String key) {
-        String value = getValue(cursor, key, columnMemo);
+    /**
+     * Turn the last contact ID of a page into an opaque continuation
+     * token for selectPage.  Callers shouldn't be picking these apart,
+     * so we version and encode them.
+     *
+     * @param lastId ID of the last contact on the current page
+     * @return continuation token
+     */
+    public static String encodePageToken(String lastId) {
+        String raw = "v1:" + lastId;
+        return Base64.encodeToString(raw.getBytes(),
+                                     Base64.URL_SAFE | Base64.NO_WRAP);
+    }
 
-        if ((value != null) && (value.length() > 0)) {
-            obj.addProperty(fieldName, value);
+    /**
+     * Reverse encodePageToken.
+     *
+     * @param token continuation token, or null/empty for the first page
+     * @return the contact ID to continue after (0 for the first page)
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static long decodePageToken(String token) {
+        if ((token == null) || (token.length() == 0)) {
+            return 0;
         }
+
+        String raw = new String(Base64.decode(token, Base64.URL_SAFE));
+
+        if (!raw.startsWith("v1:")) {
+            throw new IllegalArgumentException("bad page token " + token);
+        }
+
+        // NumberFormatException is an IllegalArgumentException, so a
+        // mangled ID is reported the same way as a mangled prefix.
+        return Long.parseLong(raw.substring(3));
     }
-	
+
     /**
      * For a mapping of contactId to Json contact objects, fill out each contact with the projection of fields
      * (or all fields, if fields is null)
@@ -538,46 +893,459 @@ class Util {
      * NB contacts is changed in-place
      */
     public static void populateContacts(final Map<String, JsonObject> contacts, JsonArray fields) {
-        if (fields == null) {
-            fields = allFields;
-        }
-        final String[] projection = getProjection(fields);
-		
-        Joiner joiner = Joiner.on("','").skipNulls();
-        String contactIds = "'"+joiner.join(contacts.keySet())+"'";
-		
-        final String[] mimeTypes = getMimeTypes(fields);
-		
-        StringBuilder selection = new StringBuilder();
-		
-        selection.append(ContactsContract.Data.CONTACT_ID + " in ("+contactIds+")");
-        if (mimeTypes.length > 0) {
-            selection.append(" AND (");
-            for (int i = 0; i < mimeTypes.length - 1; i++) {
-                selection.append(ContactsContract.Data.MIMETYPE + " = ? OR ");
+        populateContacts(contacts, fields, CallContext.NONE);
+    }
+
+    /**
+     * populateContacts, for a call that may be cancelled.
+     *
+     * @param contacts mapping of contactId to JsonObject contact
+     * @param fields   array of high-level fields, or null for everything
+     * @param ctx      context of the call we're working for
+     * @throws ContactCancelledException if ctx is cancelled part way
+     */
+    public static void populateContacts(final Map<String, JsonObject> contacts, JsonArray fields,
+                                        final CallContext ctx) {
+        final QueryPlan plan = QueryPlan.forFields(fields);
+        final ContactCache cache = ContactCache.get();
+        ContactStats.Call call = ContactStats.begin("populateContacts");
+
+        try {
+            if (cache != null) {
+                populateContactsCached(contacts, plan, cache, ctx);
+            } else {
+                hydrate(contacts, plan, ctx);
             }
-            selection.append(ContactsContract.Data.MIMETYPE + " = ?)");
+        } finally {
+            call.end();
         }
-		
-        Cursor cursor = ForgeApp.getActivity().getContentResolver().query(
-            ContactsContract.Data.CONTENT_URI,
-            projection,
-            selection.toString(),
-            mimeTypes, null);
-		
+    }
+
+    /**
+     * Query the Data table for every contact in a map, a chunk at a time.
+     *
+     * @param contacts mapping of contactId to JsonObject contact
+     * @param plan     query plan for the requested fields
+     * @param ctx      context of the call we're working for
+     */
+    private static void hydrate(final Map<String, JsonObject> contacts,
+                                final QueryPlan plan,
+                                final CallContext ctx) {
+        // SQLite caps the number of bound arguments per statement (999
+        // on older devices), and the mime types eat into that too.
+        int chunkSize = Math.min(hydrationChunkSize,
+                                 MAX_BOUND_ARGS - plan.mimeTypes.length);
+
+        ArrayList<String> contactIds = new ArrayList<String>(contacts.keySet());
+        int chunks = (contactIds.size() + chunkSize - 1) / chunkSize;
+        int parts = Math.min(chunks, ContactExecutor.parallelism());
+
+        if (!parallelHydration || (parts < 2)) {
+            hydrateRange(contacts, contactIds, chunkSize, plan, ctx);
+            return;
+        }
+
+        // Give each part a contiguous run of IDs, so that each of its
+        // queries covers a narrow stretch of the Data table's contact_id
+        // index rather than the same rows as every other part.
+        Collections.sort(contactIds, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    try {
+                        return Long.valueOf(a).compareTo(Long.valueOf(b));
+                    } catch (NumberFormatException e) {
+                        return a.compareTo(b);
+                    }
+                }
+            });
+
+        // Whole chunks per part, so we make no more queries than the
+        // serial path would.
+        int chunksPerPart = (chunks + parts - 1) / parts;
+        final ArrayList<ContactStats.Call> calls = new ArrayList<ContactStats.Call>();
+        ArrayList<Runnable> jobs = new ArrayList<Runnable>(parts);
+
+        for (int start = 0; start < contactIds.size(); start += chunksPerPart * chunkSize) {
+            final List<String> range = contactIds.subList(
+                start, Math.min(start + chunksPerPart * chunkSize, contactIds.size()));
+            final int size = chunkSize;
+
+            jobs.add(new Runnable() {
+                    public void run() {
+                        ContactStats.Call call = ContactStats.begin("hydratePartition");
+                        try {
+                            hydrateRange(contacts, range, size, plan, ctx);
+                        } finally {
+                            call.end();
+                            synchronized (calls) {
+                                calls.add(call);
+                            }
+                        }
+                    }
+                });
+        }
+
         try {
-            if (!cursor.moveToFirst()) {
-                return;
+            ContactExecutor.runAll(jobs);
+        } finally {
+            // The parts' stats were kept on their own threads; credit
+            // their rows to whatever call we're part of on this one.
+            // (The first part ran here, so it's already been counted.)
+            for (ContactStats.Call call : calls) {
+                if (call.thread != Thread.currentThread()) {
+                    ContactStats.rows(call.rows);
+                }
             }
-            do {
+        }
+    }
+
+    /**
+     * Hydrate some of the contacts in a map, a chunk at a time, on the
+     * calling thread.
+     *
+     * @param contacts   mapping of contactId to JsonObject contact
+     * @param contactIds the IDs to hydrate
+     * @param chunkSize  IDs per query
+     * @param plan       query plan for the requested fields
+     * @param ctx        context of the call we're working for
+     */
+    private static void hydrateRange(Map<String, JsonObject> contacts,
+                                     List<String> contactIds,
+                                     int chunkSize,
+                                     QueryPlan plan,
+                                     CallContext ctx) {
+        for (int start = 0; start < contactIds.size(); start += chunkSize) {
+            int end = Math.min(start + chunkSize, contactIds.size());
+            ctx.checkCancelled();
+            populateChunk(contacts, contactIds.subList(start, end), plan, ctx);
+        }
+    }
+
+    /**
+     * populateContacts, with the contact cache turned on: serve what we
+     * can from the cache, hydrate the rest, and remember them.
+     *
+     * @param contacts mapping of contactId to JsonObject contact
+     * @param plan     query plan for the requested fields
+     * @param cache    the active cache
+     * @param ctx      context of the call we're working for
+     */
+    private static void populateContactsCached(final Map<String, JsonObject> contacts,
+                                               final QueryPlan plan,
+                                               final ContactCache cache,
+                                               final CallContext ctx) {
+        final int generation = cache.generation();
+        Map<String, JsonObject> misses = new HashMap<String, JsonObject>();
+
+        for (Map.Entry<String, JsonObject> entry : contacts.entrySet()) {
+            JsonObject cached = cache.get(plan, entry.getKey());
+
+            if (cached == null) {
+                misses.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+
+            JsonObject contact = entry.getValue();
+            for (Map.Entry<String, JsonElement> property : cached.entrySet()) {
+                contact.add(property.getKey(), property.getValue());
+            }
+        }
+
+        if (misses.isEmpty()) {
+            return;
+        }
+
+        hydrate(misses, plan, ctx);
+
+        for (Map.Entry<String, JsonObject> entry : misses.entrySet()) {
+            cache.put(plan, entry.getKey(), entry.getValue(), generation);
+        }
+    }
+
+    /**
+     * Look up the display names of a list of contacts, a chunk at a time,
+     * giving contacts ready for populateContacts.
+     *
+     * @param contactIds IDs of the contacts to look up
+     * @param ctx        context of the call we're working for
+     * @return mapping of contactId to a JsonObject holding its id and
+     *         displayName, in the order of contactIds; IDs that aren't
+     *         in the address book (and duplicates) are left out
+     */
+    public static Map<String, JsonObject> findContacts(final List<String> contactIds,
+                                                       final CallContext ctx) {
+        HashMap<String, String> names = new HashMap<String, String>();
+        int chunkSize = Math.min(hydrationChunkSize, MAX_BOUND_ARGS);
+
+        for (int start = 0; start < contactIds.size(); start += chunkSize) {
+            List<String> chunk = contactIds.subList(start, Math.min(start + chunkSize,
+                                                                    contactIds.size()));
+
+            Cursor cursor = query(ContactsContract.Contacts.CONTENT_URI,
+                                  new String[] {
+                                      ContactsContract.Contacts._ID,
+                                      ContactsContract.Contacts.DISPLAY_NAME
+                                  },
+                                  inClause(ContactsContract.Contacts._ID, chunk.size()),
+                                  chunk.toArray(new String[chunk.size()]),
+                                  null, ctx);
+            try {
+                while (cursor.moveToNext()) {
+                    names.put(cursor.getString(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        Map<String, JsonObject> contacts = new LinkedHashMap<String, JsonObject>();
+
+        for (String contactId : contactIds) {
+            if (names.containsKey(contactId) && !contacts.containsKey(contactId)) {
+                JsonObject contact = new JsonObject();
+                contact.addProperty("id", contactId);
+                contact.addProperty("displayName", names.get(contactId));
+                contacts.put(contactId, contact);
+            }
+        }
+        return contacts;
+    }
+
+    /**
+     * Set the maximum number of contact IDs hydrated by a single Data
+     * query in populateContacts.  Bigger chunks mean fewer provider
+     * round-trips; smaller chunks mean shorter statements and smaller
+     * cursor windows.
+     *
+     * @param chunkSize number of contact IDs per query (at least 1)
+     */
+    public static void setHydrationChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+        hydrationChunkSize = chunkSize;
+    }
+
+    /**
+     * Turn parallel hydration on or off.  When it's on, populateContacts
+     * splits the contacts it has to hydrate into one contiguous range of
+     * IDs per core and queries and decodes the ranges concurrently.
+     * That helps on multi-core devices when most of the time goes in
+     * decoding rather than in the provider; the provider itself is still
+     * one process, so don't expect it to scale linearly.
+     *
+     * @param enabled true to hydrate in parallel
+     */
+    public static void setParallelHydration(boolean enabled) {
+        parallelHydration = enabled;
+    }
+
+    /**
+     * Query the contacts provider on behalf of a call that may be
+     * cancelled.  On Jelly Bean and up the query gets the call's
+     * CancellationSignal, so cancelling interrupts a query that's
+     * already running; on older releases we can only check before we
+     * start.  Rows read from the cursor are credited to ContactStats
+     * when it's closed.  Everything goes through the module's shared
+     * ContactsClient.
+     *
+     * @param uri        content URI to query
+     * @param projection columns to return
+     * @param selection  selection, or null
+     * @param args       selection arguments, or null
+     * @param sortOrder  sort order, or null
+     * @param ctx        context of the call we're working for
+     * @return the cursor (never null)
+     * @throws ContactCancelledException if ctx is cancelled
+     */
+    static Cursor query(Uri uri, String[] projection, String selection,
+                        String[] args, String sortOrder, CallContext ctx) {
+        ctx.checkCancelled();
+
+        Object signal = null;
+        Cursor cursor;
+
+        if ((ctx != CallContext.NONE)
+            && (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN)) {
+            signal = ctx.signal();
+        }
+
+        try {
+            cursor = ContactsClient.query(uri, projection, selection, args, sortOrder, signal);
+        } catch (RuntimeException e) {
+            // OperationCanceledException, if we were cancelled mid-query;
+            // report that as the cancellation it is.
+            ctx.checkCancelled();
+            throw e;
+        }
+
+        if (cursor == null) {
+            throw new IllegalStateException("Contacts provider returned no cursor for " + uri);
+        }
+        return new CountingCursor(cursor);
+    }
+
+    /**
+     * Build a "column IN (?,?,...)" clause with count placeholders.
+     *
+     * @param column column name to test
+     * @param count  number of bound arguments
+     */
+    static String inClause(String column, int count) {
+        StringBuilder clause = new StringBuilder(column.length() + 6 + 2 * count);
+
+        clause.append(column).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            clause.append(i == 0 ? "?" : ",?");
+        }
+        clause.append(")");
+        return clause.toString();
+    }
+
+    /**
+     * Hydrate one chunk of contacts for populateContacts, using bound
+     * arguments for both the contact IDs and the mime types.
+     *
+     * @param contacts mapping of contactId to JsonObject contact
+     * @param chunk    contact IDs to hydrate in this query
+     * @param plan     query plan for the requested fields
+     * @param ctx      context of the call we're working for
+     */
+    private static void populateChunk(final Map<String, JsonObject> contacts,
+                                      final List<String> chunk,
+                                      final QueryPlan plan,
+                                      final CallContext ctx) {
+        final String[] mimeTypes = plan.mimeTypes;
+        String selection = inClause(ContactsContract.Data.CONTACT_ID, chunk.size());
+
+        if (plan.mimeTypeSelection != null) {
+            selection += " AND " + plan.mimeTypeSelection;
+        }
+
+        String[] args = new String[chunk.size() + mimeTypes.length];
+        chunk.toArray(args);
+        System.arraycopy(mimeTypes, 0, args, chunk.size(), mimeTypes.length);
+
+        Cursor cursor = query(ContactsContract.Data.CONTENT_URI,
+                              plan.projection,
+                              selection,
+                              args, null, ctx);
+
+        PhotoStore.Batch photos = PhotoStore.beginBatch();
+
+        try {
+            RowDecoder decoder = plan.decoder;
+            while (cursor.moveToNext()) {
+                ctx.checkCancelled();
                 JsonObject contact = contacts.get(cursor.getString(1));
                 if (contact != null) {
-                    contactToJSON(cursor, contact, projection);
+                    contactToJSON(cursor, contact, decoder);
                 }
-            } while (cursor.moveToNext());
+            }
         } finally {
+            photos.end();
             cursor.close();
         }
+        photos.resolve(ctx);
+    }
+	
+    /**
+     * Read every contact in a single pass over the Data table, rather
+     * than a pass over Contacts followed by a hydration pass.
+     *
+     * Rows for the requested fields come back sorted by CONTACT_ID, so
+     * each contact is a contiguous run of rows.  We walk them in step
+     * with an _ID/DISPLAY_NAME scan of Contacts in the same order, fold
+     * each run into its contact and hand the contact to the sink as
+     * soon as we move past it, so only one contact is ever being built
+     * at a time.  The Contacts scan is what gives contacts with none of
+     * the requested fields their id and displayName; when no Data
+     * fields are requested at all, it's the only query we make.
+     *
+     * @param fields array of high-level fields, or null for everything
+     * @param sink   receives each contact as it's completed
+     */
+    public static void streamContacts(JsonArray fields, final ContactSink sink) {
+        streamContacts(fields, sink, CallContext.NONE);
+    }
+
+    /**
+     * streamContacts, for a call that may be cancelled.
+     *
+     * @param fields array of high-level fields, or null for everything
+     * @param sink   receives each contact as it's completed
+     * @param ctx    context of the call we're working for
+     * @throws ContactCancelledException if ctx is cancelled part way
+     */
+    public static void streamContacts(JsonArray fields, final ContactSink sink,
+                                      final CallContext ctx) {
+        final QueryPlan plan = QueryPlan.forFields(fields);
+
+        Cursor people = query(ContactsContract.Contacts.CONTENT_URI,
+                              new String[] {
+                                  ContactsContract.Contacts._ID,
+                                  ContactsContract.Contacts.DISPLAY_NAME
+                              },
+                              null, null,
+                              ContactsContract.Contacts._ID + " ASC", ctx);
+        Cursor cursor = null;
+
+        // In file mode, contacts whose photos we have yet to fetch are
+        // held back (with everything after them, to keep the order)
+        // until a batch's worth of photos is waiting.
+        PhotoStore.Batch photos = PhotoStore.beginBatch();
+        ArrayList<JsonObject> held = new ArrayList<JsonObject>();
+
+        try {
+            if (plan.mimeTypeSelection != null) {
+                cursor = query(ContactsContract.Data.CONTENT_URI,
+                               plan.projection,
+                               plan.mimeTypeSelection, plan.mimeTypes,
+                               ContactsContract.Data.CONTACT_ID + " ASC", ctx);
+            }
+
+            RowDecoder decoder = plan.decoder;
+            boolean more = (cursor != null) && cursor.moveToNext();
+
+            // Column 1 of the Data projection is CONTACT_ID (see
+            // getProjection).
+            while (people.moveToNext()) {
+                ctx.checkCancelled();
+                long contactId = people.getLong(0);
+                JsonObject contact = new JsonObject();
+                contact.addProperty("id", people.getString(0));
+                contact.addProperty("displayName", people.getString(1));
+
+                // Rows for a contact the Contacts scan didn't see (added
+                // between the two queries) are skipped.
+                while (more && (cursor.getLong(1) < contactId)) {
+                    more = cursor.moveToNext();
+                }
+                while (more && (cursor.getLong(1) == contactId)) {
+                    contactToJSON(cursor, contact, decoder);
+                    more = cursor.moveToNext();
+                }
+
+                held.add(contact);
+                if ((photos.size() == 0) || (photos.size() >= STREAM_PHOTO_BATCH)) {
+                    photos.resolve(ctx);
+                    for (JsonObject ready : held) {
+                        sink.emit(ready);
+                    }
+                    held.clear();
+                }
+            }
+        } finally {
+            photos.end();
+            if (cursor != null) {
+                cursor.close();
+            }
+            people.close();
+        }
+
+        photos.resolve(ctx);
+        for (JsonObject ready : held) {
+            sink.emit(ready);
+        }
     }
 	
     /**
@@ -588,398 +1356,434 @@ class Util {
      * @return the contact object changed in-place
      */
     public static JsonObject contactIdToJsonObject(final String contactId, JsonArray fields) {
-        if (fields == null) {
-            fields = allFields;
+        final QueryPlan plan = QueryPlan.forFields(fields);
+        final ContactCache cache = ContactCache.get();
+
+        if (cache == null) {
+            return queryContact(contactId, plan);
         }
-        final String[] projection = getProjection(fields);
-        final String[] mimeTypes = getMimeTypes(fields);
-		
-        StringBuilder selection = new StringBuilder();
-		
-        selection.append(ContactsContract.Data.CONTACT_ID + " = '"+contactId+"'");
-        if (mimeTypes.length > 0) {
-            selection.append(" AND (");
-            for (int i = 0; i < mimeTypes.length - 1; i++) {
-                selection.append(ContactsContract.Data.MIMETYPE + " = ? OR ");
+
+        final int generation = cache.generation();
+        JsonObject contact = cache.get(plan, contactId);
+
+        if (contact == null) {
+            contact = queryContact(contactId, plan);
+            if (contact != null) {
+                cache.put(plan, contactId, contact, generation);
             }
-            selection.append(ContactsContract.Data.MIMETYPE + " = ?)");
         }
+        return contact;
+    }
+
+    /**
+     * The uncached guts of contactIdToJsonObject.
+     *
+     * @param contactId
+     * @param plan query plan for the requested fields
+     * @return the contact, or null if there's no such contact
+     */
+    private static JsonObject queryContact(final String contactId, final QueryPlan plan) {
+        Cursor cursor = query(ContactsContract.Data.CONTENT_URI,
+                              plan.projection,
+                              plan.byIdSelection,
+                              plan.byIdArgs(contactId), null, CallContext.NONE);
 		
-        Cursor cursor = ForgeApp.getActivity().getContentResolver().query(
-            ContactsContract.Data.CONTENT_URI,
-            projection,
-            selection.toString(),
-            mimeTypes, null);
-		
+        PhotoStore.Batch photos = PhotoStore.beginBatch();
+        JsonObject contact = new JsonObject();
+
         try {
-            JsonObject contact = new JsonObject();
             if (!cursor.moveToFirst()) {
                 return null;
             }
+            RowDecoder decoder = plan.decoder;
             do {
-                contact = contactToJSON(cursor, contact, projection);
+                contact = contactToJSON(cursor, contact, decoder);
             } while (cursor.moveToNext());
-            return contact;
         } finally {
+            photos.end();
             cursor.close();
         }
+        photos.resolve(CallContext.NONE);
+        return contact;
     }
 	
-    // See contactIdToJsonObject
+    /**
+     * Fold the current row of a Data cursor into a contact.  This
+     * compiles a RowDecoder for the projection, so it's only suitable
+     * for one-off rows; loops should build a RowDecoder once and use
+     * the overload below.
+     *
+     * See contactIdToJsonObject
+     */
     public static JsonObject contactToJSON(Cursor cursor, JsonObject contact,
                                            String[] projection) {
-        Map<String, Integer> columnMemo = new Hashtable<String, Integer>();
+        return contactToJSON(cursor, contact, new RowDecoder(projection));
+    }
 
-        for (int idx=0; idx<projection.length; idx++) {
-            columnMemo.put(projection[idx], idx);
-        }
-		
-        addIfPresent(contact, "displayName", cursor, columnMemo,
-                     Data.DISPLAY_NAME);
-        addIfPresent(contact, "id", cursor, columnMemo,
-                     ContactsContract.Contacts._ID);
+    // See contactIdToJsonObject
+    public static JsonObject contactToJSON(Cursor cursor, JsonObject contact,
+                                           RowDecoder decoder) {
+        addIfPresent(contact, "displayName", cursor, decoder.displayName);
+        addIfPresent(contact, "id", cursor, decoder.contactId);
 		
-        String mimeType = getValue(cursor, Data.MIMETYPE, columnMemo);
+        String mimeType = decoder.getString(cursor, decoder.mimeType);
 		
-        if (mimeType.equals(Nickname.CONTENT_ITEM_TYPE)) {
-            addIfPresent(contact, "nickname", cursor, columnMemo,
-                         Nickname.NAME);
-        } else if (mimeType.equals(Note.CONTENT_ITEM_TYPE)) {
-            addIfPresent(contact, "note", cursor, columnMemo,
-                         Note.NOTE);
-        } else if (mimeType.equals(Event.CONTENT_ITEM_TYPE)) {
-            if (getValue(cursor, Event.TYPE, columnMemo).equals(Event.TYPE_BIRTHDAY)) {
-                contact.addProperty("birthday", getValue(cursor, Event.START_DATE, columnMemo));
-            }
-        } else if (mimeType.equals(StructuredName.CONTENT_ITEM_TYPE)) {
-            JsonObject name = new JsonObject();
-            
-            addIfPresent(name, "familyName", cursor, columnMemo,
-                         StructuredName.FAMILY_NAME);
-            addIfPresent(name, "formatted", cursor, columnMemo,
-                         StructuredName.DISPLAY_NAME);
-            addIfPresent(name, "givenName", cursor, columnMemo,
-                         StructuredName.GIVEN_NAME);
-            addIfPresent(name, "honorificPrefix", cursor, columnMemo,
-                         StructuredName.PREFIX);
-            addIfPresent(name, "honorificSuffix", cursor, columnMemo,
-                         StructuredName.SUFFIX);
-            addIfPresent(name, "middleName", cursor, columnMemo,
-                         StructuredName.MIDDLE_NAME);
-            contact.add("name", name);
-        } else if (mimeType.equals(Email.CONTENT_ITEM_TYPE)) {
-            JsonObject email = new JsonObject();
-            JsonArray emails;
-
-            email.addProperty("value",
-                              getValue(cursor, Email.DATA1, columnMemo));
-            email.addProperty("pref", false);
-            switch (getValueOrMinusOne(cursor, Email.TYPE, columnMemo)) {
-            case Email.TYPE_HOME:
-                email.addProperty("type", "home");
-                break;
-            case Email.TYPE_WORK:
-                email.addProperty("type", "work");
-                break;
-            case Email.TYPE_OTHER:
-                email.addProperty("type", "other");
-                break;
-            case Email.TYPE_MOBILE:
-                email.addProperty("type", "mobile");
-                break;
-            case BaseTypes.TYPE_CUSTOM:
-                addIfPresent(email, "type", cursor, columnMemo,
-                             Email.LABEL);
-                break;
-            default:
-                email.add("type", JsonNull.INSTANCE);
-                break;
-            }
-            if (contact.has("emails")) {
-                emails = contact.getAsJsonArray("emails");
-            } else {
-                emails = new JsonArray();
-            }
-            emails.add(email);
-            contact.add("emails", emails);
-        } else if (mimeType.equals(Phone.CONTENT_ITEM_TYPE)) {
-            JsonObject phone = new JsonObject();
-            JsonArray phones;
-
-            addIfPresent(phone, "value", cursor, columnMemo,
-                         Phone.NUMBER);
-            phone.addProperty("pref", false);
-            switch (getValueOrMinusOne(cursor, Phone.TYPE, columnMemo)) {
-            case Phone.TYPE_HOME:
-                phone.addProperty("type", "home");
-                break;
-            case Phone.TYPE_MOBILE:
-                phone.addProperty("type", "mobile");
-                break;
-            case Phone.TYPE_WORK:
-                phone.addProperty("type", "work");
-                break;
-            case Phone.TYPE_FAX_WORK:
-                phone.addProperty("type", "fax_work");
-                break;
-            case Phone.TYPE_FAX_HOME:
-                phone.addProperty("type", "fax_home");
-                break;
-            case Phone.TYPE_PAGER:
-                phone.addProperty("type", "pager");
-                break;
-            case Phone.TYPE_OTHER:
-                phone.addProperty("type", "other");
-                break;
-            case Phone.TYPE_CALLBACK:
-                phone.addProperty("type", "callback");
-                break;
-            case Phone.TYPE_CAR:
-                phone.addProperty("type", "car");
-                break;
-            case Phone.TYPE_COMPANY_MAIN:
-                phone.addProperty("type", "company_main");
-                break;
-            case Phone.TYPE_ISDN:
-                phone.addProperty("type", "isdn");
-                break;
-            case Phone.TYPE_MAIN:
-                phone.addProperty("type", "main");
-                break;
-            case Phone.TYPE_OTHER_FAX:
-                phone.addProperty("type", "other_fax");
-                break;
-            case Phone.TYPE_RADIO:
-                phone.addProperty("type", "radio");
-                break;
-            case Phone.TYPE_TELEX:
-                phone.addProperty("type", "telex");
-                break;
-            case Phone.TYPE_TTY_TDD:
-                phone.addProperty("type", "tty_tdd");
-                break;
-            case Phone.TYPE_WORK_MOBILE:
-                phone.addProperty("type", "work_mobile");
-                break;
-            case Phone.TYPE_WORK_PAGER:
-                phone.addProperty("type", "work_pager");
-                break;
-            case Phone.TYPE_ASSISTANT:
-                phone.addProperty("type", "assistant");
-                break;
-            case Phone.TYPE_MMS:
-                phone.addProperty("type", "mms");
-                break;
-            case BaseTypes.TYPE_CUSTOM:
-                addIfPresent(phone, "type", cursor, columnMemo,
-                             Phone.LABEL);
-                break;
-            default:
-                phone.add("type", JsonNull.INSTANCE);
-                break;
-            }
-            if (contact.has("phoneNumbers")) {
-                phones = contact.getAsJsonArray("phoneNumbers");
-            } else {
-                phones = new JsonArray();
-            }
-            phones.add(phone);
-            contact.add("phoneNumbers", phones);
-        } else if (mimeType.equals(StructuredPostal.CONTENT_ITEM_TYPE)) {
-            JsonObject address = new JsonObject();
-            JsonArray addresses;
-            addIfPresent(address, "formatted", cursor, columnMemo,
-                         StructuredPostal.FORMATTED_ADDRESS);
-            address.addProperty("pref", false);
+        if (mimeType == null) {
+            return contact;
+        }
+
+        FieldHandler handler = fieldHandlers.get(mimeType);
+
+        if (handler != null) {
+            handler.decode(cursor, decoder, contact);
+        }
+        return contact;
+    }
+
+    /**
+     * Get one of a contact's array properties, adding an empty one if
+     * it doesn't have it yet.
+     *
+     * @param contact The contact
+     * @param field   Property name, e.g. "emails"
+     * @return The contact's array (not a copy)
+     */
+    private static JsonArray listFor(JsonObject contact, String field) {
+        JsonElement list = contact.get(field);
+
+        if (list == null) {
+            list = new JsonArray();
+            contact.add(field, list);
+        }
+        return list.getAsJsonArray();
+    }
+
+    // FieldHandler for Nickname rows: the nickname.
+    private static void decodeNickname(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+        addIfPresent(contact, "nickname", cursor, decoder.nickname);
+    }
+
+    // FieldHandler for Note rows: the note.
+    private static void decodeNote(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+        addIfPresent(contact, "note", cursor, decoder.note);
+    }
+
+    // FieldHandler for Event rows: the birthday (the only event we report).
+    private static void decodeEvent(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+        if (decoder.getInt(cursor, decoder.eventType) == Event.TYPE_BIRTHDAY) {
+            contact.addProperty("birthday", decoder.getString(cursor, decoder.eventStartDate));
+        }
+    }
+
+    // FieldHandler for StructuredName rows: the name.
+    private static void decodeName(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+        JsonObject name = new JsonObject();
+        
+        addIfPresent(name, "familyName", cursor, decoder.nameFamily);
+        addIfPresent(name, "formatted", cursor, decoder.nameFormatted);
+        addIfPresent(name, "givenName", cursor, decoder.nameGiven);
+        addIfPresent(name, "honorificPrefix", cursor, decoder.namePrefix);
+        addIfPresent(name, "honorificSuffix", cursor, decoder.nameSuffix);
+        addIfPresent(name, "middleName", cursor, decoder.nameMiddle);
+        contact.add("name", name);
+    }
+
+    // FieldHandler for Email rows: the email address.
+    private static void decodeEmail(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+        JsonObject email = new JsonObject();
+
+        email.addProperty("value",
+                          decoder.getString(cursor, decoder.emailValue));
+        email.addProperty("pref", false);
+        switch (decoder.getInt(cursor, decoder.emailType)) {
+        case Email.TYPE_HOME:
+            email.addProperty("type", "home");
+            break;
+        case Email.TYPE_WORK:
+            email.addProperty("type", "work");
+            break;
+        case Email.TYPE_OTHER:
+            email.addProperty("type", "other");
+            break;
+        case Email.TYPE_MOBILE:
+            email.addProperty("type", "mobile");
+            break;
+        case BaseTypes.TYPE_CUSTOM:
+            addIfPresent(email, "type", cursor, decoder.emailLabel);
+            break;
+        default:
+            email.add("type", JsonNull.INSTANCE);
+            break;
+        }
+        listFor(contact, "emails").add(email);
+    }
+
+    // FieldHandler for Phone rows: the phone number.
+    private static void decodePhone(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+        JsonObject phone = new JsonObject();
+
+        addIfPresent(phone, "value", cursor, decoder.phoneNumber);
+        phone.addProperty("pref", false);
+        switch (decoder.getInt(cursor, decoder.phoneType)) {
+        case Phone.TYPE_HOME:
+            phone.addProperty("type", "home");
+            break;
+        case Phone.TYPE_MOBILE:
+            phone.addProperty("type", "mobile");
+            break;
+        case Phone.TYPE_WORK:
+            phone.addProperty("type", "work");
+            break;
+        case Phone.TYPE_FAX_WORK:
+            phone.addProperty("type", "fax_work");
+            break;
+        case Phone.TYPE_FAX_HOME:
+            phone.addProperty("type", "fax_home");
+            break;
+        case Phone.TYPE_PAGER:
+            phone.addProperty("type", "pager");
+            break;
+        case Phone.TYPE_OTHER:
+            phone.addProperty("type", "other");
+            break;
+        case Phone.TYPE_CALLBACK:
+            phone.addProperty("type", "callback");
+            break;
+        case Phone.TYPE_CAR:
+            phone.addProperty("type", "car");
+            break;
+        case Phone.TYPE_COMPANY_MAIN:
+            phone.addProperty("type", "company_main");
+            break;
+        case Phone.TYPE_ISDN:
+            phone.addProperty("type", "isdn");
+            break;
+        case Phone.TYPE_MAIN:
+            phone.addProperty("type", "main");
+            break;
+        case Phone.TYPE_OTHER_FAX:
+            phone.addProperty("type", "other_fax");
+            break;
+        case Phone.TYPE_RADIO:
+            phone.addProperty("type", "radio");
+            break;
+        case Phone.TYPE_TELEX:
+            phone.addProperty("type", "telex");
+            break;
+        case Phone.TYPE_TTY_TDD:
+            phone.addProperty("type", "tty_tdd");
+            break;
+        case Phone.TYPE_WORK_MOBILE:
+            phone.addProperty("type", "work_mobile");
+            break;
+        case Phone.TYPE_WORK_PAGER:
+            phone.addProperty("type", "work_pager");
+            break;
+        case Phone.TYPE_ASSISTANT:
+            phone.addProperty("type", "assistant");
+            break;
+        case Phone.TYPE_MMS:
+            phone.addProperty("type", "mms");
+            break;
+        case BaseTypes.TYPE_CUSTOM:
+            addIfPresent(phone, "type", cursor, decoder.phoneLabel);
+            break;
+        default:
+            phone.add("type", JsonNull.INSTANCE);
+            break;
+        }
+        listFor(contact, "phoneNumbers").add(phone);
+    }
+
+    // FieldHandler for StructuredPostal rows: the postal address.
+    private static void decodeAddress(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+        JsonObject address = new JsonObject();
+        addIfPresent(address, "formatted", cursor, decoder.postalFormatted);
+        address.addProperty("pref", false);
 			
-            switch (getValueOrMinusOne(cursor, StructuredPostal.TYPE, columnMemo)) {
-            case StructuredPostal.TYPE_HOME:
-                address.addProperty("type", "home");
-                break;
-            case StructuredPostal.TYPE_WORK:
-                address.addProperty("type", "work");
-                break;
-            case StructuredPostal.TYPE_OTHER:
-                address.addProperty("type", "other");
-                break;
-            case BaseTypes.TYPE_CUSTOM:
-                addIfPresent(address, "type", cursor, columnMemo,
-                             StructuredPostal.LABEL);
-                break;
-            default:
-                address.add("type", JsonNull.INSTANCE);
-                break;
-            }
+        switch (decoder.getInt(cursor, decoder.postalType)) {
+        case StructuredPostal.TYPE_HOME:
+            address.addProperty("type", "home");
+            break;
+        case StructuredPostal.TYPE_WORK:
+            address.addProperty("type", "work");
+            break;
+        case StructuredPostal.TYPE_OTHER:
+            address.addProperty("type", "other");
+            break;
+        case BaseTypes.TYPE_CUSTOM:
+            addIfPresent(address, "type", cursor, decoder.postalLabel);
+            break;
+        default:
+            address.add("type", JsonNull.INSTANCE);
+            break;
+        }
 			
-            addIfPresent(address, "country", cursor, columnMemo,
-                         StructuredPostal.COUNTRY);
-            addIfPresent(address, "locality", cursor, columnMemo,
-                         StructuredPostal.CITY);
-            addIfPresent(address, "postalCode", cursor, columnMemo,
-                         StructuredPostal.POSTCODE);
-            addIfPresent(address, "region", cursor, columnMemo,
-                         StructuredPostal.REGION);
-            addIfPresent(address, "streetAddress", cursor, columnMemo,
-                         StructuredPostal.STREET);
+        addIfPresent(address, "country", cursor, decoder.postalCountry);
+        addIfPresent(address, "locality", cursor, decoder.postalCity);
+        addIfPresent(address, "postalCode", cursor, decoder.postalPostcode);
+        addIfPresent(address, "region", cursor, decoder.postalRegion);
+        addIfPresent(address, "streetAddress", cursor, decoder.postalStreet);
 			
-            if (contact.has("addresses")) {
-                addresses = contact.getAsJsonArray("addresses");
-            } else {
-                addresses = new JsonArray();
-            }
-            addresses.add(address);
-            contact.add("addresses", addresses);
-        } else if (mimeType.equals(Im.CONTENT_ITEM_TYPE)) {
-            JsonObject im = new JsonObject();
-            JsonArray ims;
-            addIfPresent(im, "value", cursor, columnMemo,
-                         Im.DATA);
-            im.addProperty("pref", false);
+        listFor(contact, "addresses").add(address);
+    }
+
+    // FieldHandler for Im rows: the IM address.
+    private static void decodeIm(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+        JsonObject im = new JsonObject();
+        addIfPresent(im, "value", cursor, decoder.imValue);
+        im.addProperty("pref", false);
 			
-            switch (getValueOrMinusOne(cursor, Im.PROTOCOL, columnMemo)) {
-            case Im.PROTOCOL_AIM:
-                im.addProperty("type", "aim");
-                break;
-            case Im.PROTOCOL_MSN:
-                im.addProperty("type", "msn");
-                break;
-            case Im.PROTOCOL_YAHOO:
-                im.addProperty("type", "yahoo");
-                break;
-            case Im.PROTOCOL_SKYPE:
-                im.addProperty("type", "skype");
-                break;
-            case Im.PROTOCOL_QQ:
-                im.addProperty("type", "qq");
-                break;
-            case Im.PROTOCOL_GOOGLE_TALK:
-                im.addProperty("type", "google_talk");
-                break;
-            case Im.PROTOCOL_ICQ:
-                im.addProperty("type", "icq");
-                break;
-            case Im.PROTOCOL_JABBER:
-                im.addProperty("type", "jabber");
-                break;
-            case Im.PROTOCOL_NETMEETING:
-                im.addProperty("type", "netmeeting");
-                break;
-            case Im.PROTOCOL_CUSTOM:
-                addIfPresent(im, "type", cursor, columnMemo,
-                             Im.CUSTOM_PROTOCOL);
-                break;
-            default:
-                im.add("type", JsonNull.INSTANCE);
-                break;
-            }
+        switch (decoder.getInt(cursor, decoder.imProtocol)) {
+        case Im.PROTOCOL_AIM:
+            im.addProperty("type", "aim");
+            break;
+        case Im.PROTOCOL_MSN:
+            im.addProperty("type", "msn");
+            break;
+        case Im.PROTOCOL_YAHOO:
+            im.addProperty("type", "yahoo");
+            break;
+        case Im.PROTOCOL_SKYPE:
+            im.addProperty("type", "skype");
+            break;
+        case Im.PROTOCOL_QQ:
+            im.addProperty("type", "qq");
+            break;
+        case Im.PROTOCOL_GOOGLE_TALK:
+            im.addProperty("type", "google_talk");
+            break;
+        case Im.PROTOCOL_ICQ:
+            im.addProperty("type", "icq");
+            break;
+        case Im.PROTOCOL_JABBER:
+            im.addProperty("type", "jabber");
+            break;
+        case Im.PROTOCOL_NETMEETING:
+            im.addProperty("type", "netmeeting");
+            break;
+        case Im.PROTOCOL_CUSTOM:
+            addIfPresent(im, "type", cursor, decoder.imCustomProtocol);
+            break;
+        default:
+            im.add("type", JsonNull.INSTANCE);
+            break;
+        }
 			
-            if (contact.has("ims")) {
-                ims = contact.getAsJsonArray("ims");
-            } else {
-                ims = new JsonArray();
-            }
-            ims.add(im);
-            contact.add("ims", ims);
-        } else if (mimeType.equals(Website.CONTENT_ITEM_TYPE)) {
-            JsonObject url = new JsonObject();
-            JsonArray urls;
-
-            addIfPresent(url, "value", cursor, columnMemo,
-                         Website.URL);
-            url.addProperty("pref", false);
-            switch (getValueOrMinusOne(cursor, Website.TYPE, columnMemo)) {
-            case Website.TYPE_HOME:
-                url.addProperty("type", "home");
-                break;
-            case Website.TYPE_HOMEPAGE:
-                url.addProperty("type", "homepage");
-                break;
-            case Website.TYPE_BLOG:
-                url.addProperty("type", "blog");
-                break;
-            case Website.TYPE_PROFILE:
-                url.addProperty("type", "profile");
-                break;
-            case Website.TYPE_WORK:
-                url.addProperty("type", "work");
-                break;
-            case Website.TYPE_FTP:
-                url.addProperty("type", "ftp");
-                break;
-            case Website.TYPE_OTHER:
-                url.addProperty("type", "other");
-                break;
-            case BaseTypes.TYPE_CUSTOM:
-                addIfPresent(url, "type", cursor, columnMemo,
-                             Website.LABEL);
-                break;
-            default:
-                url.add("type", JsonNull.INSTANCE);
-                break;
-            }
+        listFor(contact, "ims").add(im);
+    }
+
+    // FieldHandler for Website rows: the URL.
+    private static void decodeUrl(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+        JsonObject url = new JsonObject();
+
+        addIfPresent(url, "value", cursor, decoder.urlValue);
+        url.addProperty("pref", false);
+        switch (decoder.getInt(cursor, decoder.urlType)) {
+        case Website.TYPE_HOME:
+            url.addProperty("type", "home");
+            break;
+        case Website.TYPE_HOMEPAGE:
+            url.addProperty("type", "homepage");
+            break;
+        case Website.TYPE_BLOG:
+            url.addProperty("type", "blog");
+            break;
+        case Website.TYPE_PROFILE:
+            url.addProperty("type", "profile");
+            break;
+        case Website.TYPE_WORK:
+            url.addProperty("type", "work");
+            break;
+        case Website.TYPE_FTP:
+            url.addProperty("type", "ftp");
+            break;
+        case Website.TYPE_OTHER:
+            url.addProperty("type", "other");
+            break;
+        case BaseTypes.TYPE_CUSTOM:
+            addIfPresent(url, "type", cursor, decoder.urlLabel);
+            break;
+        default:
+            url.add("type", JsonNull.INSTANCE);
+            break;
+        }
 			
-            if (contact.has("urls")) {
-                urls = contact.getAsJsonArray("urls");
-            } else {
-                urls = new JsonArray();
-            }
-            urls.add(url);
-            contact.add("urls", urls);
-        } else if (mimeType.equals(Organization.CONTENT_ITEM_TYPE)) {
-            JsonObject organization = new JsonObject();
-            JsonArray organizations;
-
-            addIfPresent(organization, "name", cursor, columnMemo,
-                         Organization.COMPANY);
-            addIfPresent(organization, "department", cursor, columnMemo,
-                         Organization.DEPARTMENT);
-            addIfPresent(organization, "title", cursor, columnMemo,
-                         Organization.TITLE);
-            organization.addProperty("pref", false);
+        listFor(contact, "urls").add(url);
+    }
+
+    // FieldHandler for Organization rows: the organization.
+    private static void decodeOrganization(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+        JsonObject organization = new JsonObject();
+
+        addIfPresent(organization, "name", cursor, decoder.orgCompany);
+        addIfPresent(organization, "department", cursor, decoder.orgDepartment);
+        addIfPresent(organization, "title", cursor, decoder.orgTitle);
+        organization.addProperty("pref", false);
 			
-            switch (getValueOrMinusOne(cursor, Organization.TYPE, columnMemo)) {
-            case Organization.TYPE_WORK:
-                organization.addProperty("type", "work");
-                break;
-            case Organization.TYPE_OTHER:
-                organization.addProperty("type", "other");
-                break;
-            case BaseTypes.TYPE_CUSTOM:
-                addIfPresent(organization, "type", cursor, columnMemo,
-                             Organization.LABEL);
-                break;
-            default:
-                organization.add("type", JsonNull.INSTANCE);
-                break;
-            }
+        switch (decoder.getInt(cursor, decoder.orgType)) {
+        case Organization.TYPE_WORK:
+            organization.addProperty("type", "work");
+            break;
+        case Organization.TYPE_OTHER:
+            organization.addProperty("type", "other");
+            break;
+        case BaseTypes.TYPE_CUSTOM:
+            addIfPresent(organization, "type", cursor, decoder.orgLabel);
+            break;
+        default:
+            organization.add("type", JsonNull.INSTANCE);
+            break;
+        }
 			
-            if (contact.has("organizations")) {
-                organizations = contact.getAsJsonArray("organizations");
-            } else {
-                organizations = new JsonArray();
-            }
-            organizations.add(organization);
-            contact.add("organizations", organizations);
-        } else if (mimeType.equals(Photo.CONTENT_ITEM_TYPE)) {
-            JsonArray photos;
-            if (contact.has("photos")) {
-                photos = contact.getAsJsonArray("photos");
+        listFor(contact, "organizations").add(organization);
+    }
+
+    // FieldHandler for Photo rows: the photo.  In file mode the row has
+    // no blob, just a version; if we don't have that version on disk,
+    // PhotoStore fetches it later.
+    private static void decodePhoto(Cursor cursor, RowDecoder decoder, JsonObject contact) {
+        try {
+            if (decoder.dataVersion >= 0) {
+                String contactId = cursor.getString(decoder.contactId);
+                long dataId = cursor.getLong(decoder.dataId);
+                int version = decoder.getInt(cursor, decoder.dataVersion);
+                String url = PhotoStore.cachedUrl(contactId, dataId, version);
+
+                if (url != null) {
+                    addPhoto(contact, url);
+                } else {
+                    PhotoStore.defer(contact, contactId, dataId, version);
+                }
             } else {
-                photos = new JsonArray();
-            }
-            try {
-                JsonObject photo = new JsonObject();
-                byte[] photoData = cursor.getBlob(cursor.getColumnIndexOrThrow(Photo.PHOTO));
+                byte[] photoData = decoder.getBlob(cursor, decoder.photo);
                 if (photoData != null) {
-                    photo.addProperty("value", "data:image/jpg;base64," + Base64.encodeToString(photoData, Base64.NO_WRAP));
-                    photo.addProperty("pref", false);
+                    addPhoto(contact, inlinePhotoUrl(photoData));
                 }
-                photos.add(photo);
-            } catch (Exception e) {
             }
-            contact.add("photos", photos);
+        } catch (Exception e) {
         }
-        return contact;
+    }
+
+    /**
+     * Add a photo to a contact.
+     *
+     * @param contact The contact
+     * @param url     file: or data: URL of the photo
+     */
+    static void addPhoto(JsonObject contact, String url) {
+        JsonObject photo = new JsonObject();
+        photo.addProperty("value", url);
+        photo.addProperty("pref", false);
+        listFor(contact, "photos").add(photo);
+    }
+
+    /**
+     * @param photoData A photo
+     * @return The photo as a data: URL
+     */
+    static String inlinePhotoUrl(byte[] photoData) {
+        return "data:image/jpg;base64," + Base64.encodeToString(photoData, Base64.NO_WRAP);
     }
 
     /**
@@ -1321,23 +2125,49 @@ class Util {
      * @param accountName  Account name under which to add contact
      * @param contact      W3C Contact object representing contact to add
      * @return An ArrayList of ContentProviderOperation, suitable for 
-     *         handing off to a ContentResolver's applyBatch method
+     *         handing off to ContactsClient.applyBatch
      */
 
     public static ArrayList<ContentProviderOperation>
     opsFromJSONObject(String accountType, String accountName,
                       JsonObject contact) {
-        // Start by allocating our operation array...
+        // Start by allocating our operation array, then let the
+        // appending version do the work.
 
         ArrayList<ContentProviderOperation> ops =
             new ArrayList<ContentProviderOperation>();
 
-        // ...getting the backreference set up (I know, it's always zero
-        // in this method, but this is more likely to be refactor-safe)...
+        opsFromJSONObject(ops, accountType, accountName, contact);
+        return ops;
+    }
+
+    /**
+     * Convert a W3C Contact into ContentProviderOperations, appending
+     * them to an existing list.  This is how we pack many contacts into
+     * one applyBatch: back-references are relative to the start of the
+     * list, so they stay correct wherever in the list we land.
+     *
+     * No op allows a yield: a yield point commits everything before it,
+     * and addAll relies on a failed batch leaving nothing behind so that
+     * it can safely retry the batch's contacts one at a time.  Batches
+     * are kept small enough (MAX_BATCH_OPS) not to need yields.
+     *
+     * @param ops          ContentProviderOperation list to append to
+     * @param accountType  Account type under which to add contact
+     * @param accountName  Account name under which to add contact
+     * @param contact      W3C Contact object representing contact to add
+     * @return The index in ops of this contact's raw contact insert
+     */
+
+    public static int
+    opsFromJSONObject(ArrayList<ContentProviderOperation> ops,
+                      String accountType, String accountName,
+                      JsonObject contact) {
+        // Get the backreference set up...
 
         int rawContactInsertIndex = ops.size();
 
-        // ...and setting up the initial insertion operation.
+        // ...and set up the initial insertion operation.
 
         ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
                 .withValue(RawContacts.ACCOUNT_TYPE, accountType)
@@ -1479,6 +2309,6 @@ class Util {
         // Close out the name op.
         nameOp.done(ops);
 
-        return ops;
+        return rawContactInsertIndex;
     }
 }
@@ -55,6 +55,12 @@
     }
 }
 
+// selectAll:fields:options: the options are Android-only performance
+// hints, so we just ignore them here.
++ (void)selectAll:(ForgeTask*)task fields:(NSArray*) fields options:(NSDictionary*) options {
+    [contact_API selectAll:task fields:fields];
+}
+
 + (void)selectAll:(ForgeTask *)task {
     [contact_API selectAll:task
                        fields:@[ @"phoneNumbers", @"emailAddresses" ]];
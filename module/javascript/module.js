@@ -1,3 +1,20 @@
+// Long-running calls are tagged with a handle, so that the object they
+// return can cancel them with contact.cancel.
+var contactHandles = 0;
+
+var cancellable = function (handle) {
+	return {
+		cancel: function (success, error) {
+			forge.internal.call("contact.cancel", {handle: handle}, success, error);
+		}
+	};
+};
+
+var newHandle = function () {
+	contactHandles += 1;
+	return "contact-" + new Date().getTime() + "-" + contactHandles;
+};
+
 forge['contact'] = {
 	'select': function (success, error) {
 		forge.internal.call("contact.select", {}, success, error);
@@ -7,17 +24,183 @@ forge['contact'] = {
 		forge.internal.call("contact.selectById", {id: id}, success, error);
 	},
 
-	'selectAll': function (fields, success, error) {
+	'selectByIds': function (ids, fields, options, success, error) {
 		if (typeof fields === "function") {
+			error = options;
+			success = fields;
+			fields = null;
+			options = {};
+		} else if (typeof options === "function") {
+			error = success;
+			success = options;
+			options = {};
+		}
+		var handle = newHandle();
+		forge.internal.call("contact.selectByIds", {
+			ids: ids || [],
+			fields: fields || null,
+			handle: handle,
+			timeout: (options && options.timeout) || 0
+		}, success, error);
+		return cancellable(handle);
+	},
+
+	'selectAll': function (fields, options, success, error) {
+		if (typeof fields === "function") {
+			error = options;
+			success = fields;
+			fields = [];
+			options = {};
+		} else if (typeof options === "function") {
+			error = success;
+			success = options;
+			options = {};
+		}
+		var copy = {};
+		for (var key in (options || {})) {
+			if (options.hasOwnProperty(key)) {
+				copy[key] = options[key];
+			}
+		}
+		options = copy;
+		options.handle = newHandle();
+		if (options.streamJson) {
+			// On Android the contacts arrive as JSON text, serialized as
+			// they were read; other platforms ignore the option and send
+			// the array itself.
+			var parsed = success;
+			success = function (json) {
+				parsed(typeof json === "string" ? JSON.parse(json) : json);
+			};
+		}
+		forge.internal.call("contact.selectAll", {fields: fields, options: options}, success, error);
+		return cancellable(options.handle);
+	},
+
+	'selectPage': function (fields, pageSize, cursor, options, success, error) {
+		if (typeof options === "function") {
 			error = success;
+			success = options;
+			options = {};
+		}
+		var handle = newHandle();
+		forge.internal.call("contact.selectPage", {
+			fields: fields,
+			pageSize: pageSize,
+			cursor: cursor || "",
+			handle: handle,
+			timeout: (options && options.timeout) || 0
+		}, success, error);
+		return cancellable(handle);
+	},
+
+	'selectChangedSince': function (since, fields, options, success, error) {
+		if (typeof fields === "function") {
+			error = options;
 			success = fields;
 			fields = [];
+			options = {};
+		} else if (typeof options === "function") {
+			error = success;
+			success = options;
+			options = {};
 		}
-		forge.internal.call("contact.selectAll", {fields: fields}, success, error);
+		var handle = newHandle();
+		forge.internal.call("contact.selectChangedSince", {
+			since: since || 0,
+			fields: fields,
+			handle: handle,
+			timeout: (options && options.timeout) || 0
+		}, success, error);
+		return cancellable(handle);
+	},
+
+	'search': function (query, fields, limit, options, success, error) {
+		if (typeof fields === "function") {
+			error = limit;
+			success = fields;
+			fields = [];
+			limit = 50;
+			options = {};
+		} else if (typeof limit === "function") {
+			error = options;
+			success = limit;
+			limit = 50;
+			options = {};
+		} else if (typeof options === "function") {
+			error = success;
+			success = options;
+			options = {};
+		}
+		var handle = newHandle();
+		forge.internal.call("contact.search", {
+			query: query,
+			fields: fields,
+			limit: limit || 50,
+			handle: handle,
+			timeout: (options && options.timeout) || 0
+		}, success, error);
+		return cancellable(handle);
+	},
+
+	'matchPhoneNumbers': function (numbers, success, error) {
+		forge.internal.call("contact.matchPhoneNumbers", {numbers: numbers || []}, success, error);
+	},
+
+	'suggest': function (prefix, limit, success, error) {
+		if (typeof limit === "function") {
+			error = success;
+			success = limit;
+			limit = 10;
+		}
+		forge.internal.call("contact.suggest", {prefix: prefix || "", limit: limit || 10}, success, error);
+	},
+
+	'stats': function (reset, success, error) {
+		if (typeof reset === "function") {
+			error = success;
+			success = reset;
+			reset = false;
+		}
+		forge.internal.call("contact.stats", {reset: !!reset}, success, error);
+	},
+
+	'cancel': function (handle, success, error) {
+		forge.internal.call("contact.cancel", {handle: handle}, success, error);
+	},
+
+	'setPhotoMode': function (mode, success, error) {
+		forge.internal.call("contact.setPhotoMode", {mode: mode}, success, error);
+	},
+
+	'enableCache': function (maxSize, success, error) {
+		forge.internal.call("contact.enableCache", {maxSize: maxSize}, success, error);
+	},
+
+	'disableCache': function (success, error) {
+		forge.internal.call("contact.disableCache", {}, success, error);
+	},
+
+	'setMeasureBytes': function (enabled, success, error) {
+		forge.internal.call("contact.setMeasureBytes", {enabled: !!enabled}, success, error);
+	},
+
+	'setParallelHydration': function (enabled, success, error) {
+		forge.internal.call("contact.setParallelHydration", {enabled: !!enabled}, success, error);
 	},
 
 	'add': function (contact, success, error) {
 	    forge.internal.call("contact.add", {contact: contact}, 
 				success, error);
+	},
+
+	'addAll': function (contacts, account, success, error) {
+		if (typeof account === "function") {
+			error = success;
+			success = account;
+			account = {};
+		}
+		forge.internal.call("contact.addAll", {contacts: contacts, account: account || {}},
+				success, error);
 	}
 };
@@ -70,6 +70,71 @@ asyncTest("Select all by ID", 1, function () {
     });
 });
 
+if (forge.is.android()) {
+    asyncTest("Select all by page", 1, function () {
+	forge.contact.selectAll([], function(all) {
+	    var seen = 0;
+	    var nextPage = function (cursor) {
+	        forge.contact.selectPage([], 25, cursor, function (page) {
+		    seen += page.contacts.length;
+		    if (page.cursor) {
+		        nextPage(page.cursor);
+		    } else {
+		        equal(seen, all.length, "pages should cover every contact");
+		        start();
+		    }
+	        }, function (e) {
+		    ok(false, "Error callback fired: " + e.message);
+		    start();
+	        });
+	    };
+	    nextPage(null);
+	}, function (e) {
+	    ok(false, "Error callback fired: " + e.message);
+	    start();
+	});
+    });
+
+    asyncTest("Select all sorted, without a limit", 1, function () {
+	forge.contact.selectAll([], function (all) {
+	    forge.contact.selectAll([], {sortBy: "displayName"}, function (sorted) {
+		equal(sorted.length, all.length, "sorting should return every contact");
+		start();
+	    }, function (e) {
+		ok(false, "Error callback fired: " + e.message);
+		start();
+	    });
+	}, function (e) {
+	    ok(false, "Error callback fired: " + e.message);
+	    start();
+	});
+    });
+
+    asyncTest("Select all with offset", 2, function () {
+	var ids = function (contacts) {
+	    return contacts.map(function (c) { return c.id; }).join(",");
+	};
+	forge.contact.selectAll([], {sortBy: "displayName"}, function (sorted) {
+	    forge.contact.selectAll([], {sortBy: "displayName", offset: 1}, function (rest) {
+		equal(ids(rest), ids(sorted.slice(1)), "offset without limit");
+		forge.contact.selectAll([], {sortBy: "displayName", offset: 1, limit: 2}, function (page) {
+		    equal(ids(page), ids(sorted.slice(1, 3)), "offset with limit");
+		    start();
+		}, function (e) {
+		    ok(false, "Error callback fired: " + e.message);
+		    start();
+		});
+	    }, function (e) {
+		ok(false, "Error callback fired: " + e.message);
+		start();
+	    });
+	}, function (e) {
+	    ok(false, "Error callback fired: " + e.message);
+	    start();
+	});
+    });
+}
+
 function fixIM(contact) {
     var IMs = contact.ims;
 
@@ -166,3 +231,505 @@ asyncTest("Add contact", 1, function () {
 	}
     );
 });
+
+// End-to-end tests for each API method against a synthetic address
+// book.  syntheticScale contacts are generated from a fixed seed, so
+// every run (and every device) sees the same data; raise it to
+// reproduce big books.
+//
+// Each test checks that the call's result holds what the fixture put
+// in the book, and that the call stayed within its budget of provider
+// work, tracked here per method: cursor rows read (or, for addAll,
+// batch operations applied), as a fixed allowance plus an allowance per
+// contact the call dealt with.  Unlike wall-clock time, that doesn't
+// depend on the device, so going over budget fails the test; the time
+// taken is reported alongside.
+
+var syntheticScale = 250;
+var syntheticSeed = 1234;
+
+// Every synthetic contact's note starts with this, so that we can find
+// them again and delete them when we're done.
+var syntheticNote = "forge-contact-synthetic ";
+
+// Grab this now: the "Add contact" test deletes it before we run.
+var syntheticPhotos = contactJaneDoe.photos;
+
+var workBudgets = {
+    addAll:             { counter: "ops",  fixed: 0,    perContact: 16 },
+    selectAll:          { counter: "rows", fixed: 100,  perContact: 60 },
+    selectPage:         { counter: "rows", fixed: 100,  perContact: 60 },
+    selectById:         { counter: "rows", fixed: 20,   perContact: 60 },
+    selectByIds:        { counter: "rows", fixed: 100,  perContact: 60 },
+    selectChangedSince: { counter: "rows", fixed: 100,  perContact: 60 },
+    search:             { counter: "rows", fixed: 100,  perContact: 60 },
+    suggest:            { counter: "rows", fixed: 0,    perContact: 0 },
+    matchPhoneNumbers:  { counter: "rows", fixed: 1000, perContact: 4 }
+};
+
+var allFieldNames = ['name', 'nickname', 'phoneNumbers', 'emails', 'addresses',
+		     'ims', 'organizations', 'birthday', 'note', 'photos', 'urls'];
+
+// Every field the module knows how to write, and about one contact in
+// five shares its name with an earlier one so that the provider
+// aggregates several raw contacts into one contact.
+function syntheticContacts(count, seed) {
+    var next = function () {
+	seed = (seed * 1103515245 + 12345) & 0x7fffffff;
+	return seed;
+    };
+    var pick = function (list) {
+	return list[next() % list.length];
+    };
+    var given = ["Amélie", "Bruno", "Chen", "Dagny", "Émile", "Farah", "Goran", "Hana"];
+    var family = ["Abbott", "Brontë", "Castillo", "Dlamini", "Eriksen", "Fontaine"];
+    var names = [];
+    var contacts = [];
+
+    for (var i = 0; i < count; i++) {
+	var name;
+	if ((names.length > 0) && (next() % 5 === 0)) {
+	    name = names[next() % names.length];
+	} else {
+	    name = { givenName: pick(given), familyName: pick(family) + i };
+	    names.push(name);
+	}
+	var formatted = name.givenName + " " + name.familyName;
+	contacts.push({
+	    name: { givenName: name.givenName, familyName: name.familyName,
+		    formatted: formatted },
+	    displayName: formatted,
+	    nickname: "syn" + i,
+	    note: syntheticNote + i,
+	    birthday: "19" + (50 + next() % 50) + "-0" + (1 + next() % 9) + "-1" + (next() % 9) + " 12:00:00 +0000",
+	    phoneNumbers: [
+		{ type: "mobile", pref: false, value: "+1 (617) 555-" + (1000 + next() % 9000) },
+		{ type: "work", pref: false, value: "617 555 " + (1000 + next() % 9000) } ],
+	    emails: [ { type: "home", pref: false, value: "syn" + i + "@example.com" } ],
+	    addresses: [ { type: "home", pref: false,
+			   streetAddress: (1 + next() % 999) + " Main Street",
+			   locality: "Cupertino", region: "CA", postalCode: "95014",
+			   country: "United States" } ],
+	    ims: [ { type: "jabber", pref: false, value: "syn" + i + "@jabber.example.com" } ],
+	    organizations: [ { type: "work", pref: false, name: pick(family) + " Ltd.",
+			       department: "R&D", title: "Tester" } ],
+	    urls: [ { type: "homepage", pref: false, value: "www.example.com/syn" + i } ],
+	    photos: syntheticPhotos
+	});
+    }
+    return contacts;
+}
+
+if (forge.is.android()) {
+    var syntheticStarted = 0;
+    var syntheticFixture = syntheticContacts(syntheticScale, syntheticSeed);
+
+    var isSynthetic = function (contact) {
+	return !!contact.note && (contact.note.indexOf(syntheticNote) === 0);
+    };
+
+    // The fixture's distinct names (contacts that share a name are
+    // aggregated into one) that match a test.
+    var syntheticNames = function (matches) {
+	var seen = {};
+	var names = [];
+	syntheticFixture.forEach(function (c) {
+	    if (matches(c.displayName) && !seen[c.displayName]) {
+		seen[c.displayName] = true;
+		names.push(c.displayName);
+	    }
+	});
+	return names;
+    };
+
+    // Deleting contacts isn't part of the module's API; the tests use
+    // the native method directly.
+    var removeSynthetic = function (success, error) {
+	forge.contact.selectAll(["note"], function (all) {
+	    var ids = all.filter(isSynthetic).map(function (c) {
+		return c.id;
+	    });
+	    forge.internal.call("contact.removeByIds", {ids: ids}, success, error);
+	}, error);
+    };
+
+    // call(success, error, prepared) is the part that's timed; if given,
+    // prepare(next, error) runs first, untimed, and whatever it passes
+    // to next is handed to call as prepared.  check(result, prepared)
+    // makes exactly one assertion about the result and returns the
+    // number of contacts the call dealt with, for the budget.
+    var timedTest = function (name, call, check, prepare) {
+	asyncTest("Timing: " + name, 2, function () {
+	    var budget = workBudgets[name];
+	    var failed = function (e) {
+		ok(false, "Error callback fired: " + e.message);
+		start();
+	    };
+	    var work = function (stats) {
+		var metric = stats.calls[name];
+		return metric ? metric[budget.counter] : 0;
+	    };
+
+	    (prepare || function (next) { next(); })(function (prepared) {
+		forge.contact.stats(false, function (before) {
+		    var started = new Date().getTime();
+
+		    call(function (result) {
+			var ms = new Date().getTime() - started;
+			forge.contact.stats(false, function (after) {
+			    var count = check(result, prepared);
+			    var used = work(after) - work(before);
+			    var allowed = budget.fixed + budget.perContact * count;
+			    ok(used <= allowed, name + " used " + used + " " + budget.counter +
+			       " (budget " + allowed + ") and took " + ms + "ms");
+			    start();
+			}, failed);
+		    }, failed, prepared);
+		}, failed);
+	    }, failed);
+	});
+    };
+
+    var allIds = function (next, error) {
+	forge.contact.selectAll(function (all) {
+	    next(all.map(function (c) { return c.id; }));
+	}, error);
+    };
+
+    timedTest("addAll", function (success, error) {
+	syntheticStarted = new Date().getTime();
+	forge.contact.addAll(syntheticFixture, success, error);
+    }, function (results) {
+	equal(results.filter(function (r) { return r.id; }).length, syntheticScale,
+	      "Every contact added");
+	return syntheticScale;
+    }, function (next, error) {
+	// Clear out anything left behind by a run that didn't finish.
+	removeSynthetic(function () { next(); }, error);
+    });
+
+    timedTest("selectAll", function (success, error) {
+	forge.contact.selectAll(allFieldNames, success, error);
+    }, function (all) {
+	var synthetic = all.filter(isSynthetic);
+	var complete = synthetic.filter(function (c) {
+	    return c.phoneNumbers && (c.phoneNumbers.length >= 2) &&
+		c.emails && c.emails.length && c.addresses && c.addresses.length &&
+		c.organizations && c.organizations.length && c.photos && c.photos.length;
+	});
+	ok((synthetic.length >= syntheticNames(function () { return true; }).length) &&
+	   (complete.length === synthetic.length),
+	   "Every synthetic contact returned with its details");
+	return all.length;
+    });
+
+    timedTest("selectPage", function (success, error) {
+	forge.contact.selectPage(allFieldNames, 50, null, success, error);
+    }, function (page) {
+	ok((page.contacts.length === 50) && !!page.cursor, "A full page and a cursor");
+	return page.contacts.length;
+    });
+
+    timedTest("selectById", function (success, error, ids) {
+	forge.contact.selectById(ids[ids.length - 1], success, error);
+    }, function (contact, ids) {
+	equal(contact.id, ids[ids.length - 1], "The contact asked for");
+	return 1;
+    }, allIds);
+
+    timedTest("selectByIds", function (success, error, ids) {
+	forge.contact.selectByIds(ids, allFieldNames, success, error);
+    }, function (contacts, ids) {
+	deepEqual(contacts.map(function (c) { return c.id; }), ids,
+		  "Every contact, in the order asked for");
+	return contacts.length;
+    }, allIds);
+
+    timedTest("selectChangedSince", function (success, error) {
+	forge.contact.selectChangedSince(syntheticStarted, allFieldNames, success, function (e) {
+	    // Only available on Android 4.3 and up.
+	    if (e.type === "UNAVAILABLE") {
+		success(null);
+	    } else {
+		error(e);
+	    }
+	});
+    }, function (changes) {
+	if (changes === null) {
+	    ok(true, "selectChangedSince is unavailable on this device");
+	    return 0;
+	}
+	ok(changes.changed.filter(isSynthetic).length >= syntheticNames(function () { return true; }).length,
+	   "Every synthetic contact reported as changed");
+	return changes.changed.length + changes.deleted.length;
+    });
+
+    asyncTest("selectChangedSince asks for a full resync past the deletion log", 2, function () {
+	var fail = function (e) {
+	    ok(false, "Error callback fired: " + e.message);
+	    start();
+	};
+	var changedSince = function (since, next) {
+	    forge.contact.selectChangedSince(since, next, function (e) {
+		if (e.type === "UNAVAILABLE") {
+		    ok(true, "selectChangedSince is unavailable on this device");
+		    ok(true, "selectChangedSince is unavailable on this device");
+		    start();
+		} else {
+		    fail(e);
+		}
+	    });
+	};
+
+	changedSince(new Date().getTime() - 60 * 1000, function (recent) {
+	    equal(recent.fullResync, false, "A minute ago is within the deletion log");
+	    changedSince(1, function (ancient) {
+		equal(ancient.fullResync, true, "1970 is not");
+		start();
+	    });
+	});
+    });
+
+    timedTest("search", function (success, error) {
+	forge.contact.search("Castillo", allFieldNames, 20, success, error);
+    }, function (results) {
+	var expected = Math.min(20, syntheticNames(function (name) {
+	    return name.indexOf("Castillo") !== -1;
+	}).length);
+	var found = results.filter(function (c) {
+	    return isSynthetic(c) && (c.displayName.indexOf("Castillo") !== -1);
+	});
+	ok(found.length >= expected, "Found " + found.length + " of the " + expected +
+	   " seeded Castillos expected");
+	return results.length;
+    });
+
+    timedTest("suggest", function (success, error) {
+	forge.contact.suggest("bro", 20, success, error);
+    }, function (results) {
+	var expected = Math.min(20, syntheticNames(function (name) {
+	    return name.indexOf("Brontë") !== -1;
+	}).length);
+	var found = results.filter(function (c) {
+	    return c.displayName.indexOf("Brontë") !== -1;
+	});
+	ok(found.length >= expected, "Found " + found.length + " of the " + expected +
+	   " seeded Brontës expected");
+	return results.length;
+    }, function (next, error) {
+	// Build the index first, and wait for the background rebuild that
+	// adding the fixture set off to land: the timed call should be
+	// answered from memory, without reading anything.
+	var expected = Math.min(20, syntheticNames(function (name) {
+	    return name.indexOf("Brontë") !== -1;
+	}).length);
+	var tries = 0;
+	var poll = function () {
+	    forge.contact.suggest("bro", 20, function (results) {
+		var found = results.filter(function (c) {
+		    return c.displayName.indexOf("Brontë") !== -1;
+		});
+		if ((found.length >= expected) || (++tries >= 100)) {
+		    next();
+		} else {
+		    setTimeout(poll, 100);
+		}
+	    }, error);
+	};
+	poll();
+    });
+
+    timedTest("matchPhoneNumbers", function (success, error, numbers) {
+	forge.contact.matchPhoneNumbers(numbers, success, error);
+    }, function (matches, numbers) {
+	var missing = numbers.filter(function (number) {
+	    return !matches[number] || !matches[number].length;
+	});
+	equal(missing.length, 0, "Every seeded number matched a contact");
+	return numbers.length;
+    }, function (next) {
+	next(syntheticFixture.map(function (c) {
+	    return c.phoneNumbers[0].value;
+	}));
+    });
+
+    asyncTest("Concurrent identical selectAlls share a query", 3, function () {
+	var calls = function (stats, name) {
+	    var metric = stats.calls[name];
+	    return metric ? metric.calls : 0;
+	};
+	var fail = function (e) {
+	    ok(false, "Error callback fired: " + e.message);
+	    start();
+	};
+
+	forge.contact.stats(false, function (before) {
+	    var results = [];
+	    var done = function (contacts) {
+		results.push(contacts.map(function (c) { return c.id; }).join(","));
+		if (results.length < 3) {
+		    return;
+		}
+		equal(results[1], results[0], "Second caller got the same contacts");
+		equal(results[2], results[0], "Third caller got the same contacts");
+		forge.contact.stats(false, function (after) {
+		    // Whether the later calls join depends on timing, but
+		    // each call is counted exactly once either way.
+		    equal(calls(after, "selectAll") + calls(after, "selectAllJoined")
+			  - calls(before, "selectAll") - calls(before, "selectAllJoined"),
+			  3, "Three calls recorded");
+		    start();
+		}, fail);
+	    };
+	    for (var i = 0; i < 3; i++) {
+		forge.contact.selectAll(["name"], done, fail);
+	    }
+	}, fail);
+    });
+
+    asyncTest("Stats measure result bytes only when asked", 2, function () {
+	var bytes = function (stats, name) {
+	    var metric = stats.calls[name];
+	    return metric ? metric.bytes : 0;
+	};
+	var fail = function (e) {
+	    forge.contact.setMeasureBytes(false);
+	    ok(false, "Error callback fired: " + e.message);
+	    start();
+	};
+
+	forge.contact.selectAll(function (all) {
+	    var ids = all.slice(0, 20).map(function (c) { return c.id; });
+	    forge.contact.setMeasureBytes(true, function () {
+		forge.contact.stats(false, function (before) {
+		    forge.contact.selectByIds(ids, ["name"], function (contacts) {
+			forge.contact.stats(false, function (measured) {
+			    var utf8 = unescape(encodeURIComponent(JSON.stringify(contacts))).length;
+			    equal(bytes(measured, "selectByIds") - bytes(before, "selectByIds"),
+				  utf8, "selectByIds bytes match its result");
+			    forge.contact.setMeasureBytes(false, function () {
+				forge.contact.selectByIds(ids, ["name"], function () {
+				    forge.contact.stats(false, function (after) {
+					equal(bytes(after, "selectByIds"), bytes(measured, "selectByIds"),
+					      "Nothing measured once turned off");
+					start();
+				    }, fail);
+				}, fail);
+			    }, fail);
+			}, fail);
+		    }, fail);
+		}, fail);
+	    }, fail);
+	}, fail);
+    });
+
+    // Three contacts that fit in a transaction one at a time but not
+    // together, so addAll's first batch fails and it has to retry them
+    // one by one.  None of them may come out twice.
+    asyncTest("addAll retries a failed batch without duplicates", 2, function () {
+	var failed = function (e) {
+	    ok(false, "Error callback fired: " + e.message);
+	    start();
+	};
+	var padding = new Array(200 * 1024).join("x");
+	var batch = [];
+	for (var i = 0; i < 3; i++) {
+	    batch.push({
+		name: { givenName: "Batch", familyName: "Retry" + i },
+		displayName: "Batch Retry" + i,
+		note: syntheticNote + "batch " + i + " " + padding
+	    });
+	}
+
+	forge.contact.addAll(batch, function (results) {
+	    equal(results.filter(function (r) { return r.id; }).length, 3,
+		  "every contact should be added once retried");
+	    forge.contact.selectAll(["note"], function (all) {
+		var found = all.filter(function (c) {
+		    return c.note && (c.note.indexOf(syntheticNote + "batch ") === 0);
+		});
+		equal(found.length, 3, "no contact should be inserted twice");
+		start();
+	    }, failed);
+	}, failed);
+    });
+
+    // Throughput benchmarks for the read and write paths, at scales
+    // that are too slow for every run: list the ones you want in
+    // benchmarkScales.  Each adds that many synthetic contacts (without
+    // photos, which would dominate), reads them back a few ways,
+    // reports contacts per second and removes them again.
+    var benchmarkScales = [];
+    var benchmarkFields = ['name', 'nickname', 'phoneNumbers', 'emails', 'addresses',
+			   'ims', 'organizations', 'birthday', 'note', 'urls'];
+
+    var perSecond = function (count, ms) {
+	return Math.round(count * 1000 / Math.max(ms, 1));
+    };
+
+    benchmarkScales.forEach(function (scale) {
+	asyncTest("Benchmark " + scale + " contacts", 2, function () {
+	    var report = [];
+	    var finish = function () {
+		removeSynthetic(function () { start(); }, function () { start(); });
+	    };
+	    var failed = function (e) {
+		ok(false, "Error callback fired: " + e.message);
+		finish();
+	    };
+	    var timed = function (label, count, call, next) {
+		var started = new Date().getTime();
+		call(function (result) {
+		    var ms = new Date().getTime() - started;
+		    report.push(label + ": " + ms + "ms, " + perSecond(count, ms) + " contacts/s");
+		    next(result);
+		}, failed);
+	    };
+	    var contacts = syntheticContacts(scale, syntheticSeed);
+	    contacts.forEach(function (c) { delete c.photos; });
+
+	    removeSynthetic(function () {
+		forge.contact.stats(true, function () {
+		    timed("addAll", scale, function (success, error) {
+			forge.contact.addAll(contacts, success, error);
+		    }, function (added) {
+			equal(added.filter(function (r) { return r.id; }).length, scale,
+			      "Every contact added");
+			timed("selectAll", scale, function (success, error) {
+			    forge.contact.selectAll(benchmarkFields, success, error);
+			}, function (all) {
+			    timed("selectAll singlePass", all.length, function (success, error) {
+				forge.contact.selectAll(benchmarkFields, {singlePass: true}, success, error);
+			    }, function () {
+				timed("selectAll streamJson", all.length, function (success, error) {
+				    forge.contact.selectAll(benchmarkFields, {streamJson: true}, success, error);
+				}, function () {
+				    forge.contact.stats(true, function (stats) {
+					var add = stats.calls.addAll || {};
+					report.push("ops per contact added: " + ((add.ops || 0) / scale).toFixed(1));
+					ok(true, report.join("; "));
+					finish();
+				    }, failed);
+				});
+			    });
+			});
+		    });
+		}, failed);
+	    }, failed);
+	});
+    });
+
+    asyncTest("Remove synthetic contacts", 1, function () {
+	var failed = function (e) {
+	    ok(false, "Error callback fired: " + e.message);
+	    start();
+	};
+	removeSynthetic(function () {
+	    forge.contact.selectAll(["note"], function (all) {
+		var left = all.filter(isSynthetic);
+		equal(left.length, 0, "no synthetic contacts should be left");
+		start();
+	    }, failed);
+	}, failed);
+    });
+}